@@ -0,0 +1,115 @@
+package org.neo4j.graphql
+
+/**
+ * A `@cypher` statement rewritten to run once for all parent rows of a query instead of once per row.
+ * The parents are passed as list `{_batch}` and unwound into `this`, the statement returns the position of its parent
+ * in the batch as additional first column `_index`, so aggregations are grouped per parent.
+ * Only statements without WITH, UNION, SKIP or LIMIT clauses after the optional `WITH {this} AS this` can be rewritten,
+ * that return a single expression which is either `count`, `sum` or `collect` of something or contains no aggregation at all,
+ * [parse] returns `null` for everything else. Keywords, brackets and commas in strings, quoted names and comments are ignored.
+ *
+ * @param empty the value for a parent without rows, `0` for `count` and `sum`, `[]` for `collect`
+ */
+class BatchCypher private constructor(val statement: String, val empty: Any?) {
+
+    companion object {
+        const val BATCH = "_batch"
+        const val INDEX = "_index"
+        private val THIS_PREFIX = Regex("^\\s*WITH\\s+(\\{\\s*this\\s*}|\\\$this)\\s+AS\\s+this\\s+", RegexOption.IGNORE_CASE)
+        private val THIS_PARAM = Regex("\\{\\s*this\\s*}|\\\$this\\b", RegexOption.IGNORE_CASE)
+        private val UNSUPPORTED = setOf("WITH", "UNION", "SKIP", "LIMIT")
+        private val AGGREGATIONS = setOf("COUNT", "SUM", "COLLECT", "AVG", "MIN", "MAX", "STDEV", "STDEVP", "PERCENTILECONT", "PERCENTILEDISC")
+        private val NAME = Regex("`[^`]+`|\\w+")
+
+        /** the rewritten statement or `null` if it has to run once per row */
+        fun parse(statement: String): BatchCypher? {
+            val body = statement.replaceFirst(THIS_PREFIX, "").trim().removeSuffix(";")
+            if (body.contains(THIS_PARAM)) return null
+            val tokens = tokens(body) ?: return null
+            val words = tokens.filter { it.depth == 0 && it.word }
+            val clauses = words.filterIndexed { i, it -> !(it.text == "WITH" && i > 0 && (words[i - 1].text == "STARTS" || words[i - 1].text == "ENDS")) }
+            if (clauses.any { UNSUPPORTED.contains(it.text) } || clauses.count { it.text == "RETURN" } != 1) return null
+
+            val returnAt = clauses.indexOfFirst { it.text == "RETURN" }
+            var columns = clauses[returnAt].end
+            if (clauses.getOrNull(returnAt + 1)?.let { it.text == "DISTINCT" && body.substring(columns, it.at).isBlank() } == true) columns = clauses[returnAt + 1].end
+            if (body.substring(columns).trimStart().startsWith("*")) return null
+            var end = clauses.drop(returnAt + 1).firstOrNull { it.text == "ORDER" }?.at ?: body.length
+            val alias = clauses.lastOrNull { it.text == "AS" && it.at > columns && it.at < end }
+            if (alias != null && body.substring(alias.end, end).trim().matches(NAME)) end = alias.at
+
+            val expression = tokens.filter { it.at >= columns && it.at < end }
+            if (expression.any { it.depth == 0 && it.text == "," }) return null
+            val aggregation = aggregation(expression, body.substring(columns, end))
+            // any other aggregation has a different value for a parent without rows than the statement run on its own
+            if (aggregation == null && calls(expression).any { AGGREGATIONS.contains(it) }) return null
+
+            val prefix = "UNWIND range(0, size({$BATCH}) - 1) AS `$INDEX` WITH {$BATCH}[`$INDEX`] AS this, `$INDEX` "
+            return BatchCypher(prefix + body.substring(0, columns) + " `$INDEX`," + body.substring(columns), empty(aggregation))
+        }
+
+        // count and sum of no rows is 0, collect is an empty list
+        private fun empty(aggregation: String?): Any? = when (aggregation) {
+            "COUNT", "SUM" -> 0L
+            "COLLECT" -> emptyList<Any>()
+            else -> null
+        }
+
+        /** `COUNT`, `SUM` or `COLLECT` if the whole expression is one call of it */
+        private fun aggregation(expression: List<Token>, text: String): String? {
+            val name = expression.firstOrNull()?.text
+            if (name != "COUNT" && name != "SUM" && name != "COLLECT") return null
+            if (!text.trim().toUpperCase().startsWith(name) || !text.trim().endsWith(")") || expression[1].text != "(") return null
+            // count(x) + sum(y) ends with a bracket too, the first bracket has to close at the end
+            if (expression.drop(2).dropLast(1).any { it.depth == 0 }) return null
+            return if (calls(expression).count { AGGREGATIONS.contains(it) } == 1) name else null
+        }
+
+        // names followed by an opening bracket
+        private fun calls(expression: List<Token>) = expression.zipWithNext().filter { (name, open) -> name.word && open.text == "(" }.map { it.first.text }
+
+        /**
+         * Upper cased words, brackets and commas outside of strings, quoted names and comments with their position and the
+         * number of enclosing brackets, `null` for an unterminated string or quoted name.
+         */
+        private fun tokens(text: String): List<Token>? {
+            val tokens = ArrayList<Token>()
+            var depth = 0
+            var i = 0
+            while (i < text.length) {
+                val c = text[i]
+                when {
+                    c == '\'' || c == '"' -> {
+                        i++
+                        while (i < text.length && text[i] != c) i += if (text[i] == '\\') 2 else 1
+                        if (i++ >= text.length) return null
+                    }
+                    c == '`' -> {
+                        i = text.indexOf('`', i + 1)
+                        if (i++ < 0) return null
+                    }
+                    text.startsWith("//", i) -> i = text.indexOf('\n', i).let { if (it < 0) text.length else it }
+                    text.startsWith("/*", i) -> {
+                        i = text.indexOf("*/", i + 2)
+                        if (i < 0) return null
+                        i += 2
+                    }
+                    c == '(' || c == '[' || c == '{' -> tokens.add(Token(c.toString(), i++, depth++, false))
+                    c == ')' || c == ']' || c == '}' -> tokens.add(Token(c.toString(), i++, --depth, false))
+                    c == ',' -> tokens.add(Token(",", i++, depth, false))
+                    c.isLetterOrDigit() || c == '_' || c == '$' -> {
+                        val start = i
+                        while (i < text.length && (text[i].isLetterOrDigit() || text[i] == '_' || text[i] == '$')) i++
+                        if (c.isLetter()) tokens.add(Token(text.substring(start, i).toUpperCase(), start, depth, true))
+                    }
+                    else -> i++
+                }
+            }
+            return tokens
+        }
+
+        private class Token(val text: String, val at: Int, val depth: Int, val word: Boolean) {
+            val end get() = at + text.length
+        }
+    }
+}
@@ -4,14 +4,48 @@ import graphql.language.*
 import org.neo4j.kernel.internal.Version
 import org.neo4j.graphql.util.*
 import org.neo4j.graphql.util.inner
+import java.util.*
+
+/**
+ * generated statement and the parameters for the literal values it references,
+ * sources holds the argument each parameter was bound from, so a cached statement can be re-bound,
+ * strategy describes how the nodes of each root field are looked up
+ */
+data class CypherQuery(val query: String, val params: Map<String, Any?> = emptyMap(), val sources: Map<String, Value<*>> = emptyMap(), val strategy: String? = null)
+
+/**
+ * Seeks past the cursor instead of skipping rows: the rows after it (before it when paging backward) in the order of
+ * the property and the node id. One row more than the size is read to tell if there is another page.
+ */
+data class Keyset(val property: String?, val asc: Boolean = true, val size: Int? = null, val backward: Boolean = false, val cursor: List<Any?>? = null) {
+    companion object {
+        private val mapper = com.fasterxml.jackson.databind.ObjectMapper()
+
+        /** opaque cursor holding the sort key and the node id of a row */
+        fun encode(values: List<Any?>): String = Base64.getUrlEncoder().encodeToString(mapper.writeValueAsBytes(values))
+
+        fun decode(cursor: String): List<Any?> = try {
+            mapper.readValue(Base64.getUrlDecoder().decode(cursor), List::class.java).also { if (it.size != 2) throw IllegalArgumentException() }
+        } catch (e: Exception) {
+            throw IllegalArgumentException("Invalid cursor $cursor")
+        }
+    }
+
+    // the direction the rows are read in
+    val ascending = asc != backward
+}
 
 abstract class CypherGenerator {
     companion object {
         val VERSION = Version.getNeo4jVersion()
         val DEFAULT_CYPHER_VERSION = "3.4"
+        /** default of [GraphQLSchemaBuilder.CONFIG_INLINE_CYPHER] */
+        const val DEFAULT_INLINE_CYPHER = false
+        /** default of [GraphQLSchemaBuilder.CONFIG_BATCH_CYPHER] */
+        const val DEFAULT_BATCH_CYPHER = false
 
-        fun instance(): CypherGenerator {
-            return Cypher31Generator()
+        @JvmOverloads fun instance(indexHints: Boolean = false, inlineCypher: Boolean = DEFAULT_INLINE_CYPHER, batchCypher: Boolean = DEFAULT_BATCH_CYPHER): CypherGenerator {
+            return Cypher31Generator(indexHints, inlineCypher, batchCypher)
         }
         fun attr(variable: String, field: String) = "`$variable`.`$field`"
 
@@ -30,6 +64,15 @@ abstract class CypherGenerator {
 
         private fun isParam(value: String) = value.startsWith("{") && value.endsWith("}")
 
+        /** literal argument value, with variables resolved from the request parameters */
+        fun argumentValue(value: Value<*>, params: Map<String, Any?>): Any? = when (value) {
+            is VariableReference -> params[value.name]
+            is ObjectValue -> value.objectFields.associate { it.name to argumentValue(it.value, params) }
+            is ArrayValue -> value.values.map { argumentValue(it, params) }
+            is NullValue -> null
+            else -> value.extract()
+        }
+
         fun formatValue(value: Value<*>?): String =
                 when (value) {
                     is VariableReference -> "{`${value.name}`}"
@@ -44,125 +87,211 @@ abstract class CypherGenerator {
                     else -> "" // todo raise exception ?
                 }
     }
+    /** @param filterFields per type the filter keys of the schema, keys not in it are parsed from their name */
     abstract fun generateQueryForField(field: Field, fieldDefinition: FieldDefinition? = null, isMutation: Boolean = false,
-                                       fragments: Map<String, FragmentDefinition> = emptyMap(), params: Map<String, Any> = emptyMap()): String
+                                       fragments: Map<String, FragmentDefinition> = emptyMap(), params: Map<String, Any> = emptyMap(),
+                                       metaDatas: Map<String, MetaData> = GraphSchemaScanner.allTypes(),
+                                       filterFields: Map<String, Map<String, GraphQLSchemaBuilder.FilterField>> = emptyMap()): CypherQuery
+
+    /**
+     * One statement for several root query fields, the parts are combined with UNION ALL.
+     * Each row holds the index of its field as `_field` and the projected columns as map in `_row`.
+     */
+    abstract fun generateQueryForFields(fields: List<Pair<Field, FieldDefinition?>>,
+                                        fragments: Map<String, FragmentDefinition> = emptyMap(), params: Map<String, Any> = emptyMap(),
+                                        metaDatas: Map<String, MetaData> = GraphSchemaScanner.allTypes(),
+                                        filterFields: Map<String, Map<String, GraphQLSchemaBuilder.FilterField>> = emptyMap()): CypherQuery
+
+    /** the nodes of a connection page, each row holds the values of its cursor in `_cursor` */
+    abstract fun generateConnectionQuery(field: Field, keyset: Keyset,
+                                         fragments: Map<String, FragmentDefinition> = emptyMap(), params: Map<String, Any> = emptyMap(),
+                                         metaDatas: Map<String, MetaData> = GraphSchemaScanner.allTypes(),
+                                         filterFields: Map<String, Map<String, GraphQLSchemaBuilder.FilterField>> = emptyMap()): CypherQuery
 }
 
-class Cypher31Generator : CypherGenerator() {
-    fun projectMap(field: Field, variable: String, md: MetaData, ctx: GeneratorContext): String {
-        val selectionSet = field.selectionSet ?: return ""
-
-        return projectSelectionFields(md, variable, selectionSet, ctx).map{
-            val array = md.properties[it.first]?.type?.array ?: false
-            // todo fix handling of primitive arrays in graphql-java
-            if (array) {
-                "`${it.first}` : [x IN ${it.second} | x]"
-            } else {
-                if (it.second == attr(variable, it.first)) ".`${it.first}`"
-                else "`${it.first}` : ${it.second}"
-            }
-        }.joinNonEmpty(", ","`$variable` {","}")
+/**
+ * @param indexHints adds a USING INDEX hint for the indexed property a root MATCH starts from
+ * @param inlineCypher compiles simple `@cypher` statements into the generated statement instead of calling graphql.runMany / runSingle
+ * @param batchCypher runs the other `@cypher` statements of the root fields once for all rows with graphql.runBatch
+ */
+class Cypher31Generator(private val indexHints: Boolean = false, private val inlineCypher: Boolean = DEFAULT_INLINE_CYPHER, private val batchCypher: Boolean = DEFAULT_BATCH_CYPHER) : CypherGenerator() {
+    fun projectMap(field: Field, variable: String, md: MetaData, ctx: GeneratorContext) {
+        val selectionSet = field.selectionSet ?: return
+        val projection = Projection(ctx.out, variable, md)
+        projectSelectionFields(md, variable, selectionSet, ctx, projection)
+        projection.finish()
     }
 
 
     interface Predicate {
-        fun toExpression(variable:String) : String
+        fun write(out: CypherWriter, variable: String, ctx: GeneratorContext)
     }
 
     data class CompoundPredicate(val parts : List<Predicate>, val op : String = "AND") : Predicate {
-        override fun toExpression(variable: String) = parts.map { it.toExpression(variable) }.joinNonEmpty(" "+op+" ","(",")")
+        override fun write(out: CypherWriter, variable: String, ctx: GeneratorContext) {
+            if (parts.isEmpty()) return
+            out.append('(')
+            parts.forEachIndexed { i, part ->
+                if (i > 0) out.append(' ').append(op).append(' ')
+                part.write(out, variable, ctx)
+            }
+            out.append(')')
+        }
     }
 
+    // the degree of the node, read from the relationship group of dense nodes instead of expanding the relationships
     data class IsNullPredicate(val name:String, val op: Operators, val md: MetaData) : Predicate {
-        override fun toExpression(variable:String) : String {
+        override fun write(out: CypherWriter, variable: String, ctx: GeneratorContext) {
             val rel = md.relationshipFor(name)!!
-            val (left,right) = if (rel.out) "" to ">" else "<" to ""
-            val not = if (op.not) "" else "NOT"
-            return "$not (`$variable`)$left-[:`${rel.type}`]-$right()"
+            out.append("size((").name(variable).append(')')
+            relationship(out, rel).append("())").append(if (op.not) " > 0" else " = 0")
         }
     }
 
-    data class ExpressionPredicate(val name:String, val op: Operators, val value:Any?) : Predicate {
+    // expr is the parameter expression of the value, e.g. {`filter`}.`name_contains`
+    data class ExpressionPredicate(val name:String, val op: Operators, val value:Any?, val expr: String) : Predicate {
         val not = if (op.not) "NOT" else ""
-        override fun toExpression(variable:String) =  "$not `${variable}`.`$name` ${op.op} ${formatAnyValue(value)}"
+        override fun write(out: CypherWriter, variable: String, ctx: GeneratorContext) {
+            if (value == null || value is IsNullOperator) out.attr(variable, name).append(if (op.not) " IS NOT NULL" else " IS NULL")
+            else out.append(not).append(' ').attr(variable, name).append(' ').append(op.op).append(' ').append(expr)
+        }
     }
 
-    data class RelationPredicate(val name: String, val op: Operators, val value: Map<*,*>, val md: MetaData) : Predicate {
+    data class RelationPredicate(val name: String, val op: Operators, val value: Map<*,*>, val expr: String, val md: MetaData, val metaDatas: Map<String,MetaData>) : Predicate {
         val not = if (op.not) "NOT" else ""
-        // (md)-[:TYPE]->(related) | pred] = 0/1/ > 0 | =
-        // ALL/ANY/NONE/SINGLE(p in (md)-[:TYPE]->() WHERE pred(last(nodes(p)))
-        // ALL/ANY/NONE/SINGLE(x IN [(md)-[:TYPE]->(o) | pred(o)] WHERE x)
+        // ALL/ANY/NONE/SINGLE(o IN [(md)-[:TYPE]->(o) | o] WHERE pred(o))
+        // the comprehension collects all related nodes before the predicate is evaluated, so SOME, NONE and SINGLE without a
+        // nested filter only compare the degree size((md)-[:TYPE]->()), that is read from the relationship group of dense nodes
 
-        override fun toExpression(variable:String) : String {
+        override fun write(out: CypherWriter, variable: String, ctx: GeneratorContext) {
             val prefix = when (op) {
                 Operators.EQ -> "ALL"
                 Operators.NEQ -> "ALL" // bc of not
                 else -> op.op
             }
             val rel = md.relationshipFor(name)!!
-            val (left,right) = if (rel.out) "" to ">" else "<" to ""
+            val degree = when (op) {
+                Operators.SOME -> " > 0"
+                Operators.NONE -> " = 0"
+                Operators.SINGLE -> " = 1"
+                else -> null
+            }
+            if (value.isEmpty() && degree != null) {
+                out.append("size((").name(variable).append(')')
+                relationship(out, rel).append("())").append(degree)
+                return
+            }
             val other = variable+"_"+rel.label
-            val cond = other + "_Cond"
-            val relMetaData = GraphSchemaScanner.getMetaData(rel.label)!!
-            val pred = CompoundPredicate(value.map { it -> resolvePredicate(it.key.toString(), it.value,relMetaData)}).toExpression(other)
-            return "$not $prefix(${cond} IN [(`$variable`)$left-[:`${rel.type}`]-$right(`$other`) | $pred] WHERE ${cond})"
+            val relMetaData = metaDatas[rel.label]!!
+            out.append(not).append(' ').append(prefix).append('(').name(other).append(" IN [(").name(variable).append(')')
+            relationship(out, rel).append('(').name(other).append(") | ").name(other).append("] WHERE ")
+            if (value.isEmpty()) out.append("true")
+            else CompoundPredicate(value.map { resolvePredicate(it.key.toString(), it.value, "$expr.`${it.key}`", relMetaData, metaDatas, ctx.filterFields)}).write(out, other, ctx)
+            out.append(')')
         }
     }
 
-    fun where(field: Field, variable: String, md: MetaData, orderBys: MutableList<Pair<String,Boolean>>, parameters: Map<String, Any>): String {
+    /**
+     * writes the WHERE clause preceded by prefix, nothing if the field has no predicates, returns the number of predicates.
+     * Node ids come first, then lookups on indexed properties, then the other properties and filters. The anchor argument
+     * is already part of the MATCH pattern.
+     */
+    fun where(field: Field, variable: String, md: MetaData, ctx: GeneratorContext, prefix: String, anchor: Argument? = null): Int {
+        val out = ctx.out
+        val predicates = mutableListOf<Pair<Int, () -> Unit>>()
         val filterPredicates = mutableListOf<Predicate>()
-        val predicates = field.arguments.mapNotNull {
-            val argName = it.name
-            val argValue = it.value
-            val value : Any? = if (argValue is VariableReference) parameters[argValue.name] else argValue.extract()
+        for (argument in field.arguments) {
+            if (argument === anchor) continue
+            val argName = argument.name
+            val argValue = argument.value
+            val value : Any? = ctx.value(argValue)
             when (argName) {
                 "filter" -> {
-                    if (value is Map<*,*>) filterPredicates.add(CompoundPredicate(value.map { (k,v) -> toExpression(k.toString(), v, md) }, "AND"))
-                    null
+                    if (value is Map<*,*>) {
+                        val expr = ctx.reference(argValue, variable + "_" + argName)
+                        filterPredicates.add(CompoundPredicate(value.map { (k,v) -> toExpression(k.toString(), v, "$expr.`$k`", md, ctx) }, "AND"))
+                    }
                 }
-                "orderBy" -> {
-                    extractOrderByEnum(it, orderBys, parameters)
-                    null
-                }
-                GraphQLSchemaBuilder.ArgumentProperties.NodeId.name -> GraphQLSchemaBuilder.ArgumentProperties.NodeId.argument(variable,field.name, value)
-                GraphQLSchemaBuilder.ArgumentProperties.NodeIds.name -> GraphQLSchemaBuilder.ArgumentProperties.NodeIds.argument(variable,field.name,value)
-                "first" -> null
-                "offset" -> null
+                "orderBy", "first", "offset" -> {}
+                GraphQLSchemaBuilder.ArgumentProperties.NodeId.name -> predicates.add(0 to {
+                    out.append(GraphQLSchemaBuilder.ArgumentProperties.NodeId.argument(variable,field.name, ctx.reference(argValue, variable + "_" + argName))) })
+                GraphQLSchemaBuilder.ArgumentProperties.NodeIds.name -> predicates.add(0 to {
+                    out.append(GraphQLSchemaBuilder.ArgumentProperties.NodeIds.argument(variable,field.name, ctx.reference(argValue, variable + "_" + argName))) })
                 else -> {
                     if (isPlural(argName) && value is Iterable<*> && md.properties.containsKey(singular(argName)))
-                        "`${variable}`.`${singular(argName)}` IN ${formatAnyValue(value)}"
+                        predicates.add((if (isIndexed(md, singular(argName))) 2 else 3) to {
+                            out.attr(variable, singular(argName)).append(" IN ").param(ctx.bind(argValue, variable + "_" + argName)) })
                     else
-                        "`${variable}`.`$argName` = ${formatAnyValue(value)}"
+                        predicates.add((if (isIndexed(md, argName)) 1 else 3) to {
+                            out.attr(variable, argName).append(" = ").param(ctx.bind(argValue, variable + "_" + argName)) })
                 }
-            // todo directives for more complex filtering
-        }}
-        return if (predicates.isEmpty() && filterPredicates.isEmpty()) "" else "WHERE " + (predicates + filterPredicates.map { it.toExpression(variable) }).joinToString("\nAND ")
+                // todo directives for more complex filtering
+            }
+        }
+        var count = 0
+        predicates.sortedBy { it.first }.forEach { nextPredicate(out, prefix, count++); it.second.invoke() }
+        filterPredicates.forEach { nextPredicate(out, prefix, count++); it.write(out, variable, ctx) }
+        return count
+    }
+
+    // non-null IDL fields are ids without an index, only what the database reported counts
+    private fun isIndexed(md: MetaData, name: String) = md.properties[name]?.indexed ?: false
+
+    /**
+     * The equality on an indexed property a root MATCH starts from, unique properties first. `null` if the nodes are
+     * looked up by id or there is no such argument, then the label is scanned.
+     */
+    private fun anchor(field: Field, md: MetaData): Argument? {
+        if (field.arguments.any { it.name == GraphQLSchemaBuilder.ArgumentProperties.NodeId.name || it.name == GraphQLSchemaBuilder.ArgumentProperties.NodeIds.name }) return null
+        return field.arguments
+                .filter { isIndexed(md, it.name) }
+                .sortedBy { if (md.properties[it.name]!!.uniqueIndex) 0 else 1 }
+                .firstOrNull()
     }
 
-    private fun toExpression(name: String, value: Any?, md: MetaData): Predicate =
+    private fun nextPredicate(out: CypherWriter, prefix: String, count: Int) =
+            if (count == 0) out.append(prefix).append("WHERE ") else out.append("\nAND ")
+
+    private fun toExpression(name: String, value: Any?, expr: String, md: MetaData, ctx: GeneratorContext): Predicate =
             if (name == "AND" || name == "OR")
                 if (value is Iterable<*>) {
-                    CompoundPredicate(value.map { toExpression("AND", it, md) }, name)
+                    CompoundPredicate(value.mapIndexed { i, it -> toExpression("AND", it, "$expr[$i]", md, ctx) }, name)
                 } else if (value is Map<*,*>){
-                    CompoundPredicate(value.map { (k,v) -> toExpression(k.toString(), v, md) }, name)
+                    CompoundPredicate(value.map { (k,v) -> toExpression(k.toString(), v, "$expr.`$k`", md, ctx) }, name)
                 } else {
                     throw IllegalArgumentException("Unexpected value for filter: $value")
                 }
             else {
-                resolvePredicate(name, value, md)
+                resolvePredicate(name, value, expr, md, ctx.metaDatas, ctx.filterFields)
             }
 
     companion object {
-        private fun resolvePredicate(name: String, value: Any?, md: MetaData): Predicate {
-            val (fieldName, op) = Operators.resolve(name, value)
-            return if (md.hasRelationship(fieldName)) {
-                if (value is Map<*, *>) RelationPredicate(fieldName, op, value, md)
-                else if (value is IsNullOperator) IsNullPredicate(fieldName, op, md)
+        private val THIS_ALIAS = Regex("this\\s*\\}?\\s+AS\\s+",RegexOption.IGNORE_CASE)
+
+        // one lookup in the filter fields of the schema, only unary operators and types without schema are parsed from the name
+        private fun resolvePredicate(name: String, value: Any?, expr: String, md: MetaData, metaDatas: Map<String,MetaData>,
+                                     filterFields: Map<String, Map<String, GraphQLSchemaBuilder.FilterField>>): Predicate {
+            val filter = if (value is UnaryOperator) null else filterFields[md.type]?.get(name)
+            val (fieldName, op) = if (filter != null) filter.name to filter.op else Operators.resolve(name, value)
+            val relationship = if (filter != null) filter.relationship != null else md.hasRelationship(fieldName)
+            return if (relationship) {
+                if (value is Map<*, *>) RelationPredicate(fieldName, op, value, expr, md, metaDatas)
+                else if (value == null || value is IsNullOperator) IsNullPredicate(fieldName, op, md)
                 else throw IllegalArgumentException("Input for $fieldName must be an filter-InputType")
             } else {
-                ExpressionPredicate(fieldName, op, value)
+                ExpressionPredicate(fieldName, op, value, expr)
             }
         }
+
+        /** writes -[:`TYPE`]-> or <-[:`TYPE`]- */
+        private fun relationship(out: CypherWriter, rel: MetaData.RelationshipInfo) =
+                out.append(if (rel.out) "-[:" else "<-[:").name(rel.type).append(if (rel.out) "]->" else "]-")
+    }
+
+    private fun orderBys(field: Field, parameters: Map<String, Any>): List<Pair<String,Boolean>> {
+        val orderBys = mutableListOf<Pair<String,Boolean>>()
+        field.arguments.filter { it.name == "orderBy" }.forEach { extractOrderByEnum(it, orderBys, parameters) }
+        return orderBys
     }
 
     private fun extractOrderByEnum(argument: Argument, orderBys: MutableList<Pair<String, Boolean>>, parameters: Map<String, Any>) {
@@ -191,44 +320,38 @@ class Cypher31Generator : CypherGenerator() {
         }
     }
 
-    fun projectSelectionFields(md: MetaData, variable: String, selectionSet: SelectionSet, ctx: GeneratorContext): List<Pair<String, String>> {
-        return listOf(Pair("_labels", "graphql.labels(`$variable`)")) +
-                projectFragments(md, variable, selectionSet.selections, ctx) +
-                projectNamedFragments(md, variable, selectionSet.selections, ctx) +
-                selectionSet.selections.filterIsInstance<Field>().mapNotNull { projectField(it, md, variable, ctx) }
+    fun projectSelectionFields(md: MetaData, variable: String, selectionSet: SelectionSet, ctx: GeneratorContext, projection: Projection) {
+        projection.begin("_labels")
+        ctx.out.append("graphql.labels(").name(variable).append(')')
+        projection.end("_labels")
+        projectFragments(md, variable, selectionSet.selections, ctx, projection)
+        projectNamedFragments(md, variable, selectionSet.selections, ctx, projection)
+        selectionSet.selections.forEach { if (it is Field) projectField(it, md, variable, ctx, projection) }
     }
 
-    fun projectFragments(md: MetaData, variable: String, selections: MutableList<Selection<*>>, ctx: GeneratorContext): List<Pair<String, String>> {
-        return selections.filterIsInstance<InlineFragment>().flatMap {
-            val fragmentTypeName = it.typeCondition.name
-            val fragmentMetaData = GraphSchemaScanner.getMetaData(fragmentTypeName)!!
-            if (fragmentMetaData.labels.contains(md.type) || fragmentMetaData.type == md.type) {
-                // these are the nested fields of the fragment
-                // it could be that we have to adapt the variable name too, and perhaps add some kind of rename
-                it.selectionSet.selections.filterIsInstance<Field>().map { projectField(it, fragmentMetaData, variable, ctx) }.filterNotNull()
-            } else {
-                emptyList<Pair<String, String>>()
-            }
+    fun projectFragments(md: MetaData, variable: String, selections: MutableList<Selection<*>>, ctx: GeneratorContext, projection: Projection) {
+        selections.forEach {
+            if (it is InlineFragment) projectFragment(md, variable, it.typeCondition, it.selectionSet, ctx, projection)
         }
     }
-    fun projectNamedFragments(md: MetaData, variable: String, selections: MutableList<Selection<*>>, ctx: GeneratorContext): List<Pair<String, String>> {
-        return selections.filterIsInstance<FragmentSpread>().flatMap {
-            ctx.fragment(it.name)?.let {
-                val fragmentTypeName = it.typeCondition.name
-                val fragmentMetaData = GraphSchemaScanner.getMetaData(fragmentTypeName)!!
-                if (fragmentMetaData.labels.contains(md.type) || fragmentMetaData.type == md.type) {
-                    // these are the nested fields of the fragment
-                    // it could be that we have to adapt the variable name too, and perhaps add some kind of rename
-                    it.selectionSet.selections.filterIsInstance<Field>().map { projectField(it, fragmentMetaData, variable, ctx) }.filterNotNull()
-                } else {
-                    emptyList<Pair<String, String>>()
-                }
-            }?: emptyList<Pair<String, String>>()
+
+    fun projectNamedFragments(md: MetaData, variable: String, selections: MutableList<Selection<*>>, ctx: GeneratorContext, projection: Projection) {
+        selections.forEach {
+            if (it is FragmentSpread) ctx.fragment(it.name)?.let { projectFragment(md, variable, it.typeCondition, it.selectionSet, ctx, projection) }
         }
     }
 
+    private fun projectFragment(md: MetaData, variable: String, typeCondition: TypeName, selectionSet: SelectionSet, ctx: GeneratorContext, projection: Projection) {
+        val fragmentMetaData = ctx.metaData(typeCondition.name)!!
+        if (fragmentMetaData.labels.contains(md.type) || fragmentMetaData.type == md.type) {
+            // these are the nested fields of the fragment
+            // it could be that we have to adapt the variable name too, and perhaps add some kind of rename
+            selectionSet.selections.forEach { if (it is Field) projectField(it, fragmentMetaData, variable, ctx, projection) }
+        }
+    }
 
-    private fun projectField(f: Field, md: MetaData, variable: String, ctx: GeneratorContext): Pair<String, String>? {
+    private fun projectField(f: Field, md: MetaData, variable: String, ctx: GeneratorContext, projection: Projection) {
+        val out = ctx.out
         val field = f.name
 
         val cypherStatement = md.cypherFor(field)
@@ -236,55 +359,108 @@ class Cypher31Generator : CypherGenerator() {
 
         val expectMultipleValues = md.properties[field]?.type?.array ?: true
 
-        return if (!cypherStatement.isNullOrEmpty()) {
-
-            val arguments = f.arguments.associate { it.name to it.value.cypherValue() }
-
-            val params = (mapOf("this" to "`$variable`") + arguments).entries
-                    .joinToString(",", "{", "}") { "`${it.key}`:${it.value}" }
-
-            val prefix  = if (!cypherStatement.contains(Regex("this\\s*\\}?\\s+AS\\s+",RegexOption.IGNORE_CASE))) "WITH {this} AS this " else ""
-            val runType = if (expectMultipleValues) "Many" else "Single"
-            val cypherFragment = "graphql.run${runType}('${prefix}${cypherStatement}', $params)"
-
+        if (!cypherStatement.isNullOrEmpty()) {
+            projection.begin(field)
             if (relationship != null) {
-                val (patternComp, _) = formatCypherDirectivePatternComprehension(md, cypherFragment, f, ctx.copy(orderBys = mutableListOf()))
-                Pair(field, if (relationship.multi) patternComp else "head(${patternComp})")
+                if (!relationship.multi) out.append("head(")
+                formatCypherDirectivePatternComprehension(md, variable, cypherStatement, expectMultipleValues, f, ctx.copy(orderBys = mutableListOf()))
+                if (!relationship.multi) out.append(')')
             } else {
-                Pair(field, cypherFragment) // TODO escape cypher statement quotes
+                cypherFragment(cypherStatement, expectMultipleValues, f, variable, ctx) // TODO escape cypher statement quotes
             }
-        } else {
-            if (relationship == null) {
-                if (GraphQLSchemaBuilder.ArgumentProperties.NodeId.matches(field)) GraphQLSchemaBuilder.ArgumentProperties.NodeId.render(variable)
-                else Pair(field, attr(variable, field))
+            projection.end(field)
+        } else if (relationship == null) {
+            if (GraphQLSchemaBuilder.ArgumentProperties.NodeId.matches(field)) {
+                val (name, expression) = GraphQLSchemaBuilder.ArgumentProperties.NodeId.render(variable)
+                projection.begin(name)
+                out.append(expression)
+                projection.end(name)
             } else {
-                if (f.selectionSet == null) null // todo
-                else {
-                    val (patternComp, _) = formatPatternComprehension(md, variable, f, ctx.copy(orderBys = mutableListOf())) // metaData(info.label)
-                    Pair(field, if (relationship.multi) patternComp else "head(${patternComp})")
-                }
+                projection.property(field)
             }
+        } else if (f.selectionSet != null) { // todo
+            projection.begin(field)
+            if (!relationship.multi) out.append("head(")
+            formatPatternComprehension(md, variable, f, ctx.copy(orderBys = mutableListOf())) // metaData(info.label)
+            if (!relationship.multi) out.append(')')
+            projection.end(field)
         }
     }
 
-    fun nestedPatterns(metaData: MetaData, variable: String, selectionSet: SelectionSet, ctx: GeneratorContext): String {
-        return projectSelectionFields(metaData, variable, selectionSet, ctx).map{ pair ->
-            val (fieldName, projection) = pair
-            "$projection AS `$fieldName`"
-        }.joinToString(",\n","RETURN ")
+    /** graphql.runMany('statement', {`this`:`variable`, ...arguments}), or the statement itself if it can be inlined */
+    private fun cypherFragment(cypherStatement: String, expectMultipleValues: Boolean, f: Field, variable: String, ctx: GeneratorContext) {
+        val out = ctx.out
+        ctx.batches[f]?.let { out.name(it); return }
+        inline(cypherStatement, f)?.let { inline ->
+            val arguments = f.arguments.associateBy { it.name }
+            val bound = HashMap<String, String>()
+            inline.write(out, variable, "${variable}_${f.name}", { name -> bound.getOrPut(name) { ctx.bind(arguments[name]!!.value, "${variable}_${f.name}_$name") } }, expectMultipleValues)
+            return
+        }
+        val prefix = if (!cypherStatement.contains(THIS_ALIAS)) "WITH {this} AS this " else ""
+        out.append("graphql.run").append(if (expectMultipleValues) "Many" else "Single").append("('").append(prefix).append(cypherStatement)
+        out.append("', {`this`:").name(variable)
+        f.arguments.forEach { out.append(',').name(it.name).append(':').param(ctx.bind(it.value, "${variable}_${f.name}_${it.name}")) }
+        out.append("})")
     }
 
-    fun formatCypherDirectivePatternComprehension(md: MetaData, cypherFragment: String, field: Field, ctx: GeneratorContext): Pair<String,String> {
-        val fieldName = field.name
-        val info = md.relationshipFor(fieldName) ?: return Pair("","")
-        val fieldMetaData = GraphSchemaScanner.getMetaData(info.label)!!
+    private fun inline(cypherStatement: String, f: Field): InlineCypher? {
+        if (!inlineCypher) return null
+        val inline = InlineCypher.parse(cypherStatement) ?: return null
+        return if (f.arguments.map { it.name }.containsAll(inline.parameters)) inline else null
+    }
 
-        val pattern = "x IN $cypherFragment"
+    /**
+     * The parents are paged first and collected into one list, each `@cypher` field of the root that can't be inlined
+     * runs once for that list, the parents are unwound again with their values at the same position.
+     */
+    private fun writeBatches(field: Field, md: MetaData, variable: String, orderBys: List<Pair<String, Boolean>>, batches: List<Pair<Field, BatchCypher>>, ctx: GeneratorContext) {
+        val out = ctx.out
+        val batch = "_${variable}_batch"
+        val index = "_${variable}_index"
+        out.append("\nWITH ").name(variable)
+        orderBys.forEachIndexed { i, it -> out.append(if (i == 0) " ORDER BY " else ",").attr(variable, it.first).append(if (it.second) " asc" else " desc") }
+        val (skip, limit) = skipLimit(field, variable, ctx)
+        skip?.let { out.append(" SKIP ").append(it) }
+        limit?.let { out.append(" LIMIT ").append(it) }
+        out.append("\nWITH collect(").name(variable).append(") AS ").name(batch)
+        out.append("\nWITH ").name(batch)
+        batches.forEach { (f, cypher) ->
+            out.append(", graphql.runBatch('").append(cypher.statement).append("', ").name(batch).append(", {")
+            f.arguments.forEachIndexed { i, it ->
+                if (i > 0) out.append(',')
+                out.name(it.name).append(':').param(ctx.bind(it.value, "${variable}_${f.name}_${it.name}"))
+            }
+            out.append("}, ").append((md.properties[f.name]?.type?.array ?: true).toString()).append(", ")
+            out.append(when (cypher.empty) { null -> "null"; is List<*> -> "[]"; else -> cypher.empty.toString() })
+            out.append(") AS ").name(ctx.batches[f]!!)
+        }
+        out.append("\nUNWIND range(0, size(").name(batch).append(") - 1) AS ").name(index)
+        out.append("\nWITH ").name(batch).append('[').name(index).append("] AS ").name(variable)
+        batches.forEach { (f, _) -> out.append(", ").name(ctx.batches[f]!!).append('[').name(index).append("] AS ").name(ctx.batches[f]!!) }
+    }
 
-        val projection = projectMap(field, "x", fieldMetaData, ctx)
-        val result = "[ $pattern | $projection ]"
-        val skipLimit = skipLimit(field)
-        return Pair(result + subscript(skipLimit), "x")
+    // the @cypher fields of the root that run with graphql.runBatch, they are referenced by their variable from then on
+    private fun batches(field: Field, md: MetaData, variable: String, orderBys: List<Pair<String, Boolean>>, ctx: GeneratorContext): List<Pair<Field, BatchCypher>> {
+        if (orderBys.any { md.cypherFor(it.first) != null || !md.properties.containsKey(it.first) }) return emptyList()
+        return (field.selectionSet?.selections ?: emptyList<Selection<*>>()).filterIsInstance<Field>().distinctBy { it.name }.mapNotNull { f ->
+            md.cypherFor(f.name)?.takeIf { it.isNotEmpty() && inline(it, f) == null }?.let { BatchCypher.parse(it) }?.let { f to it }
+        }.onEach { ctx.batches[it.first] = "_${variable}_${it.first.name}" }
+    }
+
+    fun formatCypherDirectivePatternComprehension(md: MetaData, variable: String, cypherStatement: String, expectMultipleValues: Boolean, field: Field, ctx: GeneratorContext) {
+        val out = ctx.out
+        val fieldName = field.name
+        val info = md.relationshipFor(fieldName) ?: return
+        val fieldMetaData = ctx.metaData(info.label)!!
+
+        out.append("[ x IN ")
+        cypherFragment(cypherStatement, expectMultipleValues, field, variable, ctx)
+        // only the values that are kept are projected
+        subscript(out, skipLimit(field, variable + "_" + fieldName, ctx))
+        out.append(" | ")
+        projectMap(field, "x", fieldMetaData, ctx)
+        out.append(" ]")
     }
 
     private fun subscriptInt(skipLimit: Pair<Number?, Number?>): String {
@@ -294,122 +470,223 @@ class Cypher31Generator : CypherGenerator() {
         val limit = if (skipLimit.second == null) -1 else skip + (skipLimit.second?.toInt() ?: 0)
         return "[$skip..$limit]"
     }
-    private fun subscript(skipLimit: Pair<String?, String?>): String {
-        if (skipLimit.first == null && skipLimit.second == null) return ""
+    private fun subscript(out: CypherWriter, skipLimit: Pair<String?, String?>) {
+        if (skipLimit.first == null && skipLimit.second == null) return
 
         val skip = skipLimit.first ?: "0"
-        val limit = if (skipLimit.second == null) "-1" else skip + "+" + (skipLimit.second ?: "0")
-        return "[$skip..$limit]"
+        out.append('[').append(skip).append("..")
+        if (skipLimit.second == null) out.append("-1") else out.append(skip).append('+').append(skipLimit.second!!)
+        out.append(']')
     }
 
-    fun formatPatternComprehension(md: MetaData, variable: String, field: Field, ctx: GeneratorContext): Pair<String,String> {
+    fun formatPatternComprehension(md: MetaData, variable: String, field: Field, ctx: GeneratorContext) {
+        val out = ctx.out
         val fieldName = field.name
-        val info = md.relationshipFor(fieldName) ?: return Pair("","")
+        val info = md.relationshipFor(fieldName) ?: return
         val fieldVariable = variable + "_" + fieldName
 
-        val arrowLeft = if (!info.out) "<" else ""
-        val arrowRight = if (info.out) ">" else ""
-
-        val fieldMetaData = GraphSchemaScanner.getMetaData(info.label)!!
-
-        val pattern = "(`$variable`)$arrowLeft-[:`${info.type}`]-$arrowRight(`$fieldVariable`:`${info.label}`)"
-        val orderBys2 = mutableListOf<Pair<String,Boolean>>()
-        val where = where(field, fieldVariable, fieldMetaData, orderBys2, parameters = ctx.params)
-        val projection = projectMap(field, fieldVariable, fieldMetaData, ctx) // [x IN graph.run ... | x {.name, .age } ] as recommendedMovie if it's a relationship/entity Person / Movie
-        var result = "[ $pattern $where | $projection]"
-        // todo parameters, use subscripts instead
-        val skipLimit = skipLimit(field)
-        if (orderBys2.isNotEmpty()) {
-            val orderByParams = orderBys2.map { "'${if (it.second) "^" else ""}${it.first}'" }.joinToString(",", "[", "]")
-            result = "graphql.sortColl($result,$orderByParams)"
+        val fieldMetaData = ctx.metaData(info.label)!!
+
+        val orderBys = orderBys(field, ctx.params)
+        val skipLimit = skipLimit(field, fieldVariable, ctx)
+        // without ordering the matched neighbours are sliced first, [x IN [ (a)-->(x) | x][skip..limit] | x {...}], and only those are projected
+        val slice = orderBys.isEmpty() && (skipLimit.first != null || skipLimit.second != null)
+        if (orderBys.isNotEmpty()) out.append("graphql.sortColl(")
+        out.append('[')
+        if (slice) out.append(' ').name(fieldVariable).append(" IN [")
+        out.append(" (").name(variable).append(')')
+        relationship(out, info).append('(').name(fieldVariable).append(':').name(info.label).append(") ")
+        where(field, fieldVariable, fieldMetaData, ctx, "")
+        if (slice) {
+            out.append(" | ").name(fieldVariable).append(']')
+            subscript(out, skipLimit)
+        }
+        out.append(" | ")
+        projectMap(field, fieldVariable, fieldMetaData, ctx) // [x IN graph.run ... | x {.name, .age } ] as recommendedMovie if it's a relationship/entity Person / Movie
+        out.append(']')
+        if (orderBys.isNotEmpty()) {
+            // sortColl slices itself, so it only keeps the first skip + limit entries instead of sorting all of them
+            out.append(",[")
+            orderBys.forEachIndexed { i, it -> out.append(if (i == 0) "'" else ",'").append(if (it.second) "^" else "").append(it.first).append('\'') }
+            out.append("]")
+            if (skipLimit.first != null || skipLimit.second != null) out.append(',').append(skipLimit.second ?: "-1").append(',').append(skipLimit.first ?: "0")
+            out.append(')')
         }
-        return Pair(result + subscript(skipLimit),fieldVariable)
     }
 
     data class GeneratorContext(val orderBys: MutableList<Pair<String,Boolean>> = mutableListOf(),
                                 val fragments: Map<String,FragmentDefinition>,
                                 val metaDatas:Map<String,MetaData>,
-                                val params : Map<String,Any> = emptyMap()) {
+                                val params : Map<String,Any> = emptyMap(),
+                                val bindings : MutableMap<String,Any?> = LinkedHashMap(),
+                                val sources : MutableMap<String,Value<*>> = LinkedHashMap(),
+                                val out: CypherWriter = CypherWriter(),
+                                val strategies: MutableList<String> = mutableListOf(),
+                                val batches: MutableMap<Field,String> = IdentityHashMap(),
+                                val filterFields: Map<String, Map<String, GraphQLSchemaBuilder.FilterField>> = emptyMap()) {
         fun metaData(name: String) = metaDatas.get(name)
         fun fragment(name: String) = fragments.get(name)
+
+        fun value(v: Value<*>): Any? = argumentValue(v, params)
+
+        /*
+         * variables are referenced directly, literals are bound as parameters. The names only depend on the position
+         * in the query, so requests that differ in values produce the same statement
+         */
+        fun bind(v: Value<*>, hint: String): String {
+            if (v is VariableReference && params.containsKey(v.name)) return v.name
+            val name = bindValue(value(v), hint)
+            sources[name] = v
+            return name
+        }
+
+        /** binds a value that is not an argument of the query, like the key of a cursor */
+        fun bindValue(value: Any?, hint: String): String {
+            var name = hint
+            var count = 1
+            while (bindings.containsKey(name)) name = hint + "_" + count++
+            bindings[name] = value
+            return name
+        }
+
+        fun reference(v: Value<*>, hint: String) = "{`${bind(v, hint)}`}"
     }
-    override fun generateQueryForField(field: Field, fieldDefinition: FieldDefinition?, isMutation: Boolean, fragments: Map<String, FragmentDefinition>, params: Map<String, Any>): String {
-        val ctx = GeneratorContext(fragments = fragments, metaDatas = GraphSchemaScanner.allTypes(), params = params)
+    override fun generateQueryForField(field: Field, fieldDefinition: FieldDefinition?, isMutation: Boolean, fragments: Map<String, FragmentDefinition>, params: Map<String, Any>, metaDatas: Map<String, MetaData>,
+                                       filterFields: Map<String, Map<String, GraphQLSchemaBuilder.FilterField>>): CypherQuery {
+        val ctx = GeneratorContext(fragments = fragments, metaDatas = metaDatas, params = params, filterFields = filterFields)
+        writeField(field, fieldDefinition, isMutation, ctx, "RETURN")
+        return CypherQuery(ctx.out.toString(), ctx.bindings.toMap(), ctx.sources.toMap(), ctx.strategies.joinToString("; "))
+    }
+
+    override fun generateConnectionQuery(field: Field, keyset: Keyset, fragments: Map<String, FragmentDefinition>, params: Map<String, Any>, metaDatas: Map<String, MetaData>,
+                                         filterFields: Map<String, Map<String, GraphQLSchemaBuilder.FilterField>>): CypherQuery {
+        val ctx = GeneratorContext(fragments = fragments, metaDatas = metaDatas, params = params, filterFields = filterFields)
+        writeField(field, null, false, ctx, "RETURN", keyset)
+        return CypherQuery(ctx.out.toString(), ctx.bindings.toMap(), ctx.sources.toMap(), ctx.strategies.joinToString("; "))
+    }
+
+    override fun generateQueryForFields(fields: List<Pair<Field, FieldDefinition?>>, fragments: Map<String, FragmentDefinition>, params: Map<String, Any>, metaDatas: Map<String, MetaData>,
+                                        filterFields: Map<String, Map<String, GraphQLSchemaBuilder.FilterField>>): CypherQuery {
+        // parameter names are unique across the parts as they share the bindings
+        val ctx = GeneratorContext(fragments = fragments, metaDatas = metaDatas, params = params, filterFields = filterFields)
+        val out = ctx.out
+        fields.forEachIndexed { i, (field, fieldDefinition) ->
+            if (i > 0) out.append("\nUNION ALL\n")
+            val names = writeField(field, fieldDefinition, false, ctx, "WITH")
+            out.append("\nRETURN ").append(i.toString()).append(" AS `_field`, {")
+            names.forEachIndexed { j, name -> out.append(if (j == 0) "" else ", ").name(name).append(':').name(name) }
+            out.append("} AS `_row`")
+        }
+        return CypherQuery(out.toString(), ctx.bindings.toMap(), ctx.sources.toMap(), ctx.strategies.joinToString("; "))
+    }
+
+    /** writes the statement of a field ending in a RETURN or WITH clause, returns the projected names */
+    private fun writeField(field: Field, fieldDefinition: FieldDefinition?, isMutation: Boolean, ctx: GeneratorContext, clause: String, keyset: Keyset? = null): List<String> {
+        val out = ctx.out
         val name = field.name
         val typeName = fieldDefinition?.type?.inner() ?: "no field definition"
         val md = ctx.metaData(name) ?: ctx.metaData(typeName) ?: throw IllegalArgumentException("Cannot resolve as type $name or $typeName")
         val variable = md.type.decapitalize()
-        val orderBys = mutableListOf<Pair<String,Boolean>>()
         val procedure = if (isMutation) "updateForNodes" else "queryForNodes"
         val cypherDefinition = fieldDefinition?.cypher()
         val isDynamic = cypherDefinition != null
-        val query = cypherDefinition?.
-                let {
-                    val passedInParams = field.arguments.map { "`${it.name}` : {`${it.name}`}" }.joinToString(",", "{", "}")
-                    """CALL graphql.$procedure("${it.statement}",${passedInParams}) YIELD node AS `$variable`"""
-                }
-                ?: "MATCH (`$variable`:`$name`)"
-
-        val projectFields = projectSelectionFields(md, variable, field.selectionSet, ctx)
-        val resultProjection = projectFields.map { pair ->
-            val (fieldName, projection) = pair
-            // todo fix handling of primitive arrays in graphql-java
-            val type = md.properties[fieldName]?.type
-            if (type?.array == true && md.cypherFor(fieldName) == null) {
-                "[x IN $projection |x] AS `$fieldName`"
-            } else {
-                "$projection AS `$fieldName`"
+        if (cypherDefinition != null) {
+            out.append("CALL graphql.").append(procedure).append("(\"").append(cypherDefinition.statement).append("\",{")
+            field.arguments.forEachIndexed { i, it ->
+                if (i > 0) out.append(',')
+                out.name(it.name).append(" : ").param(ctx.bind(it.value, variable + "_" + it.name))
             }
-        }.joinToString(",\n","RETURN ")
+            out.append("}) YIELD node AS ").name(variable)
+            ctx.strategies.add("procedure")
+        } else {
+            val anchor = anchor(field, md)
+            out.append("MATCH (").name(variable).append(':').name(name)
+            anchor?.let { out.append(" {").name(it.name).append(':').param(ctx.bind(it.value, variable + "_" + it.name)).append('}') }
+            out.append(')')
+            if (anchor != null && indexHints) out.append("\nUSING INDEX ").name(variable).append(':').name(name).append('(').name(anchor.name).append(')')
+            ctx.strategies.add(when {
+                anchor != null -> "index ${name}(${anchor.name})" + if (indexHints) " hint" else ""
+                field.arguments.any { it.name == GraphQLSchemaBuilder.ArgumentProperties.NodeId.name || it.name == GraphQLSchemaBuilder.ArgumentProperties.NodeIds.name } -> "node id"
+                else -> "label scan $name"
+            })
+            val count = where(field, variable, md, ctx, "\n", anchor)
+            if (keyset != null) seek(keyset, variable, ctx, count)
+        }
+        val orderBys = if (isDynamic) emptyList() else orderBys(field, ctx.params)
+        val batches = if (batchCypher && keyset == null && clause == "RETURN") batches(field, md, variable, orderBys, ctx) else emptyList()
+        if (batches.isNotEmpty()) writeBatches(field, md, variable, orderBys, batches, ctx)
+
+        out.append('\n')
+        val projection = Projection(out, variable, md, clause)
+        projectSelectionFields(md, variable, field.selectionSet, ctx, projection)
+        if (keyset != null) {
+            keysetOrder(keyset, variable, ctx, projection)
+            return projection.names
+        }
+        // already ordered and paged before the batches
+        if (batches.isNotEmpty()) return projection.names
+
+        // todo check if result is in returned projections
+        orderBys.forEachIndexed { i, it ->
+            out.append(if (i == 0) "\nORDER BY " else ",")
+            if (!projection.names.contains(it.first)) out.name(variable).append('.')
+            out.name(it.first).append(if (it.second) " asc" else " desc")
+        }
+        val (skip, limit) = skipLimit(field, variable, ctx)
+        skip?.let { out.append("\nSKIP ").append(it) }
+        limit?.let { out.append("\nLIMIT ").append(it) }
+        return projection.names
+    }
 
-        val resultFieldNames = projectFields.map { it.first }.toSet()
-        val where = if (isDynamic) "" else where(field, variable, md, orderBys, params)
-        val parts = listOf(
-                query,
-                where,
-                resultProjection,
-                // todo check if result is in returned projections
-                orderBys.map { (if (!resultFieldNames.contains(it.first))  "`$variable`." else "") + "`${it.first}` ${if (it.second) "asc" else "desc"}" }.joinNonEmpty(",", "ORDER BY ")
-        ) +  skipLimitStatements(skipLimit(field))
+    // (`v`.`key` > {after} OR (`v`.`key` = {after} AND id(`v`) > {after_id})), an index on the key turns this into a range seek
+    private fun seek(keyset: Keyset, variable: String, ctx: GeneratorContext, count: Int) {
+        val out = ctx.out
+        val op = if (keyset.ascending) " > " else " < "
+        // nodes without the key can't be positioned relative to a cursor
+        if (keyset.property != null) nextPredicate(out, "\n", count).attr(variable, keyset.property).append(" IS NOT NULL")
+        val cursor = keyset.cursor ?: return
+        nextPredicate(out, "\n", if (keyset.property != null) count + 1 else count)
+        val id = ctx.bindValue(cursor[1], variable + "_cursor_id")
+        if (keyset.property == null) {
+            out.append("id(").name(variable).append(')').append(op).param(id)
+            return
+        }
+        val key = ctx.bindValue(cursor[0], variable + "_cursor")
+        out.append('(').attr(variable, keyset.property).append(op).param(key)
+        out.append(" OR (").attr(variable, keyset.property).append(" = ").param(key)
+        out.append(" AND id(").name(variable).append(')').append(op).param(id).append("))")
+    }
 
-        val statement = parts.filter { !it.isNullOrEmpty() }.joinToString("\n")
-        return statement
+    private fun keysetOrder(keyset: Keyset, variable: String, ctx: GeneratorContext, projection: Projection) {
+        val out = ctx.out
+        val direction = if (keyset.ascending) " asc" else " desc"
+        projection.begin("_cursor")
+        out.append('[')
+        if (keyset.property == null) out.append("null") else out.attr(variable, keyset.property)
+        out.append(", id(").name(variable).append(")]")
+        projection.end("_cursor")
+        out.append("\nORDER BY ")
+        if (keyset.property != null) out.attr(variable, keyset.property).append(direction).append(", ")
+        out.append("id(").name(variable).append(')').append(direction)
+        keyset.size?.let { out.append("\nLIMIT ").param(ctx.bindValue(it + 1, variable + "_size")) }
     }
 
     private fun cypherDirective(field: Field): Directive? =
             field.directives.filter { it.name == "cypher" }.firstOrNull()
 
-    private fun skipLimitStatements(skipLimit: Pair<String?, String?>) =
-            listOf<String?>( skipLimit.first?.let { "SKIP $it" },skipLimit.second?.let { "LIMIT $it" })
-
     private fun skipLimitInt(field: Field): Pair<Number?,Number?> = Pair(
             intValue(argumentByName(field, "offset")),
             intValue(argumentByName(field, "first")))
 
-    private fun skipLimit(field: Field): Pair<String?,String?> = Pair(
-            argumentValueOrParam(field, "offset"), argumentValueOrParam(field, "first"))
+    private fun skipLimit(field: Field, variable: String, ctx: GeneratorContext): Pair<String?,String?> = Pair(
+            argumentParam(field, "offset", variable, ctx), argumentParam(field, "first", variable, ctx))
 
     private fun argumentByName(field: Field, name: String) = field.arguments.firstOrNull { it.name == name }
 
-    private fun argumentValueOrParam(field: Field, name: String)
-            = field.arguments
-            .filter { it.name == name }
-            .map { it.value }
-            // todo variables seem to be automatically resolved to field name variables
-            .map { if (it is VariableReference) "{${name}}" else valueAsString(it) }
-            .firstOrNull()
-
-    private fun valueAsString(it: Value<*>?): String? = when (it) {
-        is IntValue -> it.value.toString()
-        is FloatValue -> it.value.toString()
-        is StringValue -> "'" + it.value + "'"
-        is EnumValue -> "'" + it.name + "'"
-        is BooleanValue -> it.isValue.toString()
-        is ArrayValue -> it.values.map { valueAsString(it) }.joinToString(",","[","]")
-        is ObjectValue -> it.objectFields.map { "`${it.name}`:${valueAsString(it.value)}" }.joinToString(",","{","}")
-        is VariableReference -> "{${it.name}}"
-        else -> null
-    }
+    private fun argumentParam(field: Field, name: String, variable: String, ctx: GeneratorContext)
+            = argumentByName(field, name)
+            ?.takeUnless { val value = it.value; value is VariableReference && !ctx.params.containsKey(value.name) }
+            ?.let { ctx.reference(it.value, variable + "_" + name) }
 
     private fun intValue(it: Argument?) : Number? {
         val value = it?.value
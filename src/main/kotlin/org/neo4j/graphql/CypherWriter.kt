@@ -0,0 +1,83 @@
+package org.neo4j.graphql
+
+/**
+ * The buffer a statement is generated into. Fragments are appended in place instead of being built as strings and joined,
+ * one writer is shared by all nesting levels of a field.
+ * There is no Cypher AST between the generator and the writer, clauses are written in the order the generator visits the selection.
+ */
+class CypherWriter(capacity: Int = 512) {
+    private val out = StringBuilder(capacity)
+
+    val length: Int
+        get() = out.length
+
+    fun append(text: String): CypherWriter {
+        out.append(text)
+        return this
+    }
+
+    fun append(c: Char): CypherWriter {
+        out.append(c)
+        return this
+    }
+
+    /** `name` */
+    fun name(name: String) = append('`').append(name).append('`')
+
+    /** `variable`.`field` */
+    fun attr(variable: String, field: String) = name(variable).append('.').name(field)
+
+    /** {`name`} */
+    fun param(name: String) = append("{`").append(name).append("`}")
+
+    override fun toString() = out.toString()
+}
+
+/**
+ * Writes the projected fields either as map projection `variable {.name, `field` : expression}` or as RETURN or WITH clause.
+ * Expressions are written by the caller between [begin] and [end], arrays are wrapped for graphql-java.
+ */
+class Projection(private val out: CypherWriter, private val variable: String, private val md: MetaData, private val clause: String? = null) {
+    val names = ArrayList<String>()
+    private val returnClause = clause != null
+    private var array = false
+
+    fun property(name: String) {
+        if (returnClause || isArray(name)) {
+            begin(name)
+            out.attr(variable, name)
+            end(name)
+        } else {
+            next(name)
+            out.append('.').name(name)
+        }
+    }
+
+    fun begin(name: String) {
+        next(name)
+        // todo fix handling of primitive arrays in graphql-java
+        array = isArray(name) && (!returnClause || md.cypherFor(name) == null)
+        if (!returnClause) out.name(name).append(" : ")
+        if (array) out.append("[x IN ")
+    }
+
+    fun end(name: String) {
+        if (array) out.append(if (returnClause) " |x]" else " | x]")
+        if (returnClause) out.append(" AS ").name(name)
+    }
+
+    fun finish() {
+        if (!returnClause && names.isNotEmpty()) out.append('}')
+    }
+
+    private fun next(name: String) {
+        if (names.isEmpty()) {
+            if (clause != null) out.append(clause).append(' ') else out.name(variable).append(" {")
+        } else {
+            out.append(if (returnClause) ",\n" else ", ")
+        }
+        names.add(name)
+    }
+
+    private fun isArray(name: String) = md.properties[name]?.type?.array ?: false
+}
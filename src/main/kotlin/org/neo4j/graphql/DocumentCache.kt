@@ -0,0 +1,40 @@
+package org.neo4j.graphql
+
+import graphql.ExecutionInput
+import graphql.execution.preparsed.PreparsedDocumentEntry
+import graphql.execution.preparsed.PreparsedDocumentProvider
+import java.util.function.Function
+
+/**
+ * Bounded LRU cache of parsed and validated documents, shared by all schema versions.
+ * Entries are keyed by schema version and query text, entries of replaced schemas age out.
+ */
+class DocumentCache(maxSize: Int = DEFAULT_SIZE) {
+    private data class Key(val version: Long, val query: String)
+
+    private val documents = LruCache<Key, PreparsedDocumentEntry>(maxSize)
+
+    var maxSize: Int
+        get() = documents.maxSize
+        set(value) { documents.maxSize = value }
+
+    fun forVersion(version: Long) = PreparsedDocumentProvider { input, compute -> getDocument(version, input, compute) }
+
+    fun getDocument(version: Long, input: ExecutionInput, compute: Function<ExecutionInput, PreparsedDocumentEntry>): PreparsedDocumentEntry {
+        val key = Key(version, input.query)
+        val cached = documents.get(key)
+        // parse and validate outside of the lock, a concurrent miss for the same query just does the work twice
+        val entry = cached ?: compute.apply(input).also { if (!it.hasErrors()) documents.put(key, it) }
+        (input.context as? GraphQLContext)?.store("documentCache", stats() + ("hit" to (cached != null)))
+        return entry
+    }
+
+    fun stats() = documents.stats()
+
+    fun clear() = documents.clear()
+
+    companion object {
+        const val DEFAULT_SIZE = 500
+        const val CONFIG_SIZE = "graphql.cache.documents"
+    }
+}
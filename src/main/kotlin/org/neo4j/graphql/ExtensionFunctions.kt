@@ -1,5 +1,8 @@
 package org.neo4j.graphql
 
+import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.kernel.configuration.Config
+import org.neo4j.kernel.internal.GraphDatabaseAPI
 import java.io.PrintWriter
 import java.io.StringWriter
 
@@ -12,3 +15,8 @@ fun Throwable.stackTraceAsString(): String {
 fun <T> Iterable<T>.joinNonEmpty(separator: CharSequence = ", ", prefix: CharSequence = "", postfix: CharSequence = "", limit: Int = -1, truncated: CharSequence = "...", transform: ((T) -> CharSequence)? = null): String {
     return if (iterator().hasNext()) joinTo(StringBuilder(), separator, prefix, postfix, limit, truncated, transform).toString() else ""
 }
+
+fun GraphDatabaseService.config(key: String): String? =
+        (this as? GraphDatabaseAPI)?.dependencyResolver?.resolveDependency(Config::class.java)?.raw?.get(key)
+
+fun GraphDatabaseService.config(key: String, defaultValue: Int): Int = config(key)?.trim()?.toIntOrNull() ?: defaultValue
@@ -0,0 +1,79 @@
+package org.neo4j.graphql
+
+import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.internal.kernel.api.IndexReference
+import org.neo4j.internal.kernel.api.Read
+import org.neo4j.internal.kernel.api.TokenRead
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge
+import org.neo4j.kernel.internal.GraphDatabaseAPI
+
+/**
+ * Reads node and relationship counts from the counts store of the transaction bound to the current thread.
+ * Lookups are constant time, `null` stands for any label or relationship type.
+ * Only patterns with at most one label are supported, (:A)-[:R]->(:B) is not in the counts store.
+ */
+class GraphCounts(db: GraphDatabaseService) {
+    companion object {
+        /** reads in the transaction of the request, a new one is only started on threads without one, e.g. root fields executed in parallel */
+        fun <T> read(db: GraphDatabaseService, reader: (GraphCounts) -> T): T {
+            if (bridge(db).hasTransaction()) return reader(GraphCounts(db))
+            return db.beginTx().use { tx -> reader(GraphCounts(db)).also { tx.success() } }
+        }
+
+        private fun bridge(db: GraphDatabaseService) = (db as GraphDatabaseAPI).dependencyResolver.resolveDependency(ThreadToStatementContextBridge::class.java)
+    }
+
+    private val tx = bridge(db).getKernelTransactionBoundToThisThread(true)
+    private val tokens = tx.tokenRead()
+    private val read = tx.dataRead()
+    private val schema = tx.schemaRead()
+
+    fun nodes(label: String?): Long {
+        val labelId = labelId(label) ?: return 0
+        return read.countsForNode(labelId)
+    }
+
+    fun relationships(start: String?, type: String?, end: String?): Long {
+        val startId = labelId(start) ?: return 0
+        val endId = labelId(end) ?: return 0
+        val typeId = if (type == null) Read.ANY_RELATIONSHIP_TYPE else tokens.relationshipType(type).takeUnless { it == TokenRead.NO_TOKEN } ?: return 0
+        return read.countsForRelationship(startId, typeId, endId)
+    }
+
+    /** average number of nodes per value of an indexed property from the index statistics, `null` without index or statistics */
+    fun nodesPerValue(label: String, property: String): Double? {
+        val labelId = labelId(label) ?: return null
+        val propertyId = tokens.propertyKey(property).takeUnless { it == TokenRead.NO_TOKEN } ?: return null
+        val index = schema.index(labelId, propertyId)
+        if (index == IndexReference.NO_INDEX) return null
+        // the statistics of an index that is still populating are not available
+        val selectivity = try { schema.indexUniqueValuesSelectivity(index) } catch (e: Exception) { return null }
+        return if (selectivity > 0) 1 / selectivity else null
+    }
+
+    // unknown tokens have no counts, they must not fall back to ANY_LABEL which shares the value -1
+    private fun labelId(label: String?) =
+            if (label == null) Read.ANY_LABEL else tokens.nodeLabel(label).takeUnless { it == TokenRead.NO_TOKEN }
+}
+
+/**
+ * Node counts per label and relationship counts per type by start and by end label, read once for all labels of a sampling run
+ * instead of per label, relationship type and label at the other end.
+ */
+class RelationshipCounts(db: GraphDatabaseService) {
+    val nodes: Map<String, Long>
+    val types: List<String>
+    /** type to start label to number of relationships */
+    val starts: Map<String, Map<String, Long>>
+    /** type to end label to number of relationships */
+    val ends: Map<String, Map<String, Long>>
+
+    init {
+        val counts = GraphCounts(db)
+        val labels = db.allLabels.map { it.name() }
+        types = db.allRelationshipTypes.map { it.name() }
+        nodes = labels.associateWith { counts.nodes(it) }
+        starts = types.associateWith { type -> labels.associateWith { counts.relationships(it, type, null) }.filterValues { it > 0 } }
+        ends = types.associateWith { type -> labels.associateWith { counts.relationships(null, type, it) }.filterValues { it > 0 } }
+    }
+}
@@ -4,7 +4,25 @@ import org.neo4j.graphdb.GraphDatabaseService
 import org.neo4j.logging.Log
 
 class GraphQLContext(val db : GraphDatabaseService, val log : Log? = null, val parameters: Map<String,Any> = emptyMap(), val backLog : MutableMap<String,Any> = mutableMapOf()) {
-    fun store(key : String, value : Any) {
+    // rows of the root fields by result key, when they were fetched with one combined statement
+    internal var rootResults: Map<String, List<Map<String, Any>>>? = null
+
+    // root fields of a query may be fetched in parallel, each storing its result information
+    @Synchronized fun store(key : String, value : Any) {
         backLog[key]=value
     }
+
+    /** milliseconds a root field took, reported per result key under `timings` */
+    @Suppress("UNCHECKED_CAST")
+    @Synchronized fun timing(key : String, millis : Long) {
+        (backLog.getOrPut("timings") { LinkedHashMap<String,Long>() } as MutableMap<String,Long>)[key]=millis
+    }
+
+    /** estimated cost of a root field, reported per result key under `cost`, returns the cost of all root fields so far */
+    @Suppress("UNCHECKED_CAST")
+    @Synchronized fun cost(key : String, cost : Long) : Long {
+        val costs = backLog.getOrPut("cost") { LinkedHashMap<String,Long>() } as MutableMap<String,Long>
+        costs[key]=cost
+        return costs.values.sum()
+    }
 }
@@ -10,7 +10,9 @@ import org.neo4j.graphql.procedure.VirtualRelationship
 import org.neo4j.logging.Log
 import org.neo4j.procedure.*
 import java.util.*
+import java.util.concurrent.TimeUnit
 import java.util.stream.Stream
+import kotlin.streams.asStream
 
 /**
  * @author mh
@@ -24,6 +26,9 @@ class GraphQLProcedure {
     @Context
     @JvmField var log: Log? = null
 
+    @Context
+    @JvmField var guard: TerminationGuard? = null
+
     class GraphQLResult(@JvmField val result: Map<String, Any>)
     class GraphResult(@JvmField val nodes: List<Node>,@JvmField val rels: List<Relationship>)
 
@@ -42,6 +47,39 @@ class GraphQLProcedure {
         return GraphSchema.reset()
     }
 
+    class SamplingProgress(@JvmField val state: String, @JvmField val labels: Long, @JvmField val labelsDone: Long,
+                           @JvmField val nodes: Long, @JvmField val elapsed: Long, @JvmField val error: String?) {
+        constructor(progress: SchemaSampler.Progress) : this(progress.state(), progress.labels.get().toLong(), progress.labelsDone.get().toLong(),
+                progress.nodes.get(), progress.elapsed(), progress.error)
+    }
+
+    /**
+     * Samples the schema in the background and builds the GraphQL schema from it, streaming a progress row every second.
+     * Terminating the transaction cancels the sampling, with `wait: false` only the current progress is returned.
+     */
+    @Procedure("graphql.sampleSchema", mode = Mode.READ)
+    fun sampleSchema(@Name(value = "wait", defaultValue = "true") wait: Boolean) : Stream<SamplingProgress> {
+        val run = SchemaSampler.start(db!!)
+        if (!wait) return Stream.of(SamplingProgress(run.progress))
+        return sequence {
+            do {
+                val done = run.await(1, TimeUnit.SECONDS)
+                try {
+                    guard?.check()
+                } catch (e: RuntimeException) {
+                    run.cancel()
+                    throw e
+                }
+                yield(SamplingProgress(run.progress))
+            } while (!done)
+        }.asStream()
+    }
+
+    @UserFunction("graphql.schemaStats")
+    fun schemaStats() : Map<String,Any> {
+        return GraphSchema.stats()
+    }
+
     private fun doExecute(variables: Map<String, Any>, query: String, operation: String?): Stream<GraphQLResult> {
         val ctx = GraphQLContext(db!!, log!!, variables)
         val execution = ExecutionInput.Builder()
@@ -81,8 +119,7 @@ class GraphQLProcedure {
 
     @Procedure("graphql.schema")
     fun schema() : Stream<GraphResult> {
-        GraphSchemaScanner.databaseSchema(db!!)
-        val metaDatas = GraphSchemaScanner.allMetaDatas()
+        val metaDatas = GraphSchemaScanner.databaseSchema(db!!).metaDatas()
 
         val nodes = metaDatas.associate {
             val props = it.properties.values.associate { " "+it.fieldName to it.type.toString() } + ("name" to it.type)
@@ -114,6 +151,30 @@ class GraphQLProcedure {
         return result.columnAs<Any>(firstColumn).asSequence().toList()
     }
 
+    /**
+     * Runs a statement rewritten by [BatchCypher] once for all entries of the batch,
+     * returns the values of each entry at its position, like runMany or runSingle would for that entry.
+     */
+    @UserFunction("graphql.runBatch")
+    fun runBatch(@Name("query") query: String, @Name("batch") batch: List<Any?>, @Name("variables",defaultValue = "{}") variables : Map<String,Any>,
+                 @Name("expectMultipleValues", defaultValue = "true") expectMultipleValues : Boolean, @Name("empty", defaultValue = "null") empty : Any?) : List<Any?> {
+        val rows = arrayOfNulls<MutableList<Any?>>(batch.size)
+        db!!.execute(query, variables + (BatchCypher.BATCH to batch)).use { result ->
+            val column = result.columns().first { it != BatchCypher.INDEX }
+            result.forEach { row ->
+                val index = (row[BatchCypher.INDEX] as Number).toInt()
+                (rows[index] ?: ArrayList<Any?>().also { rows[index] = it }).add(row[column])
+            }
+        }
+        return rows.map { values ->
+            when {
+                values == null -> if (!expectMultipleValues) empty else if (empty == null) emptyList<Any?>() else listOf(empty)
+                expectMultipleValues -> values
+                else -> values[0]
+            }
+        }
+    }
+
     @UserFunction("graphql.labels")
     fun labels(@Name("entity") entity: Any) : List<String> {
         return when (entity) {
@@ -152,38 +213,23 @@ class GraphQLProcedure {
         return result.columnAs<Node>(firstColumn).stream().map{ Nodes(it) }
     }
 
+    /**
+     * Sorts by the order fields, prefixed with `^` for ascending, and returns the `limit` entries after `skip`.
+     * With a limit only the first `skip + limit` entries are kept in a bounded heap instead of sorting the whole collection.
+     */
     @UserFunction("graphql.sortColl")
     fun sortColl(@Name("coll") coll : java.util.List<Map<String,Any>>,
                  @Name("orderFields", defaultValue = "[]") orderFields : java.util.List<String>,
                  @Name("limit", defaultValue = "-1") limit : Long,
                  @Name("skip", defaultValue = "0") skip : Long): List<Map<String,Any>> {
 
-        val fields = orderFields.map { it: String -> val asc = it[0] == '^'; Pair(if (asc) it.substring(1) else it, asc) }
-
-        val result = ArrayList(coll) as List<Map<String,Comparable<Any>>>
-
-        val compare = { o1: Map<String, Comparable<Any>>, o2: Map<String, Comparable<Any>> ->
-            // short-cut the folding
-            fields.fold(0) { a: Int, s: Pair<String, Boolean> ->
-                if (a == 0) {
-                    val name = s.first
-                    val v1 = o1.get(name)
-                    val v2 = o2.get(name)
-                    if (v1 == v2) 0
-                    else {
-                        val cmp = if (v1 == null) -1 else if (v2 == null) 1 else v1.compareTo(v2)
-                        if (s.second) cmp else -cmp
-                    }
-                } else a
-            }
-        }
-
-        Collections.sort(result, compare)
+        val from = Math.max(0L, skip)
+        if (limit == 0L || from >= coll.size) return emptyList()
+        val compare = orderComparator(orderFields)
+        val end = if (limit > 0 && from + limit < coll.size) (from + limit).toInt() else coll.size
 
-        return (if (skip > 0 && limit != -1L) result.subList (skip.toInt(), skip.toInt() + limit.toInt())
-        else if (skip > 0) result.subList (skip.toInt(), result.size)
-        else if (limit != -1L) result.subList (0, limit.toInt())
-        else result)
+        val result = if (end < coll.size) topK(coll, compare, end) else ArrayList(coll).apply { sortWith(compare) }
+        return result.subList(from.toInt(), end)
     }
 
     @Procedure("graphql.introspect")
@@ -206,4 +252,30 @@ class GraphQLProcedure {
         return Stream.of(GraphResult(nodes.values.toList(),rels))
     }
 
+    companion object {
+        @Suppress("UNCHECKED_CAST")
+        private fun orderComparator(orderFields: List<String>): Comparator<Map<String,Any>> {
+            val comparators = orderFields.map {
+                val asc = it[0] == '^'
+                val name = if (asc) it.substring(1) else it
+                val compare = Comparator<Map<String,Any>> { o1, o2 -> compareValues(o1[name] as Comparable<Any>?, o2[name] as Comparable<Any>?) }
+                if (asc) compare else compare.reversed()
+            }
+            return if (comparators.isEmpty()) Comparator { _, _ -> 0 } else comparators.reduce { a, b -> a.thenComparing(b) }
+        }
+
+        // the head of the heap is the largest of the k smallest entries seen so far, ties keep the earlier entry like a stable sort
+        private fun topK(coll: List<Map<String,Any>>, compare: Comparator<Map<String,Any>>, k: Int): MutableList<Map<String,Any>> {
+            val byPosition = Comparator<IndexedValue<Map<String,Any>>> { a, b -> compare.compare(a.value, b.value).let { if (it != 0) it else a.index.compareTo(b.index) } }
+            val heap = PriorityQueue<IndexedValue<Map<String,Any>>>(k, byPosition.reversed())
+            coll.forEachIndexed { index, value ->
+                if (heap.size < k) heap.add(IndexedValue(index, value))
+                else if (compare.compare(value, heap.peek().value) < 0) {
+                    heap.poll()
+                    heap.add(IndexedValue(index, value))
+                }
+            }
+            return heap.sortedWith(byPosition).mapTo(ArrayList(k)) { it.value }
+        }
+    }
 }
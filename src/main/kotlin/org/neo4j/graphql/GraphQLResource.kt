@@ -1,5 +1,6 @@
 package org.neo4j.graphql
 
+import graphql.ErrorType
 import graphql.ExecutionInput
 import graphql.schema.idl.SchemaPrinter
 import org.neo4j.graphdb.GraphDatabaseService
@@ -34,9 +35,10 @@ class GraphQLResource(@Context val provider: LogProvider, @Context val db: Graph
 
     @Path("")
     @GET
-    fun get(@QueryParam("query") query: String?, @QueryParam("variables") variableParam: String?): Response {
-        if (query == null) return Response.noContent().build()
-        return executeQuery(hashMapOf("query" to query, "variables" to (variableParam ?: emptyMap<String,Any>())))
+    fun get(@QueryParam("query") query: String?, @QueryParam("variables") variableParam: String?, @QueryParam("extensions") extensions: String?): Response {
+        if (query == null && extensions == null) return Response.noContent().build()
+        // a GET request only resolves persisted queries, it doesn't write new ones
+        return executeQuery(hashMapOf("query" to query, "variables" to (variableParam ?: emptyMap<String,Any>()), "extensions" to extensions), false)
     }
 
     @Path("")
@@ -78,18 +80,28 @@ class GraphQLResource(@Context val provider: LogProvider, @Context val db: Graph
         return Response.ok().entity(printed).build() // todo JSON
     }
 
-    private fun executeQuery(params: Map<String, Any>): Response {
-        val query = params["query"] as String
+    private fun executeQuery(params: Map<String, Any?>, register: Boolean = true): Response {
+        val query: String
+        val registration: String?
+        try {
+            registration = registration(params)
+            query = resolveQuery(params) ?: return Response.ok().entity(formatMap(mapOf("errors" to listOf(mapOf("message" to PersistedQueries.NOT_FOUND,
+                    "extensions" to mapOf("code" to "PERSISTED_QUERY_NOT_FOUND")))))).build()
+        } catch (e: IllegalArgumentException) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(formatMap(mapOf("errors" to listOf(mapOf("message" to e.message))))).build()
+        }
         val variables = getVariables(params)
         if (log.isDebugEnabled()) log.debug("Executing {} with {}", query, variables)
+        var valid = false
         val tx = db.beginTx()
-        try {
+        val response = try {
             val ctx = GraphQLContext(db, log, variables)
             val graphQL = GraphSchema.getGraphQL(db)
             val execution = ExecutionInput.Builder()
                     .query(query).variables(variables).context(ctx).root(ctx) // todo proper mutation root
             params.get("operationName")?.let { execution.operationName(it.toString()) }
             val executionResult = graphQL.execute(execution.build())
+            valid = executionResult.errors.none { it.errorType == ErrorType.InvalidSyntax || it.errorType == ErrorType.ValidationError }
 
             val result = linkedMapOf("data" to executionResult.getData<Any>())
             if (ctx.backLog.isNotEmpty()) {
@@ -102,18 +114,46 @@ class GraphQLResource(@Context val provider: LogProvider, @Context val db: Graph
             } else {
                 tx.success()
             }
-            return Response.ok().entity(formatMap(result)).build()
+            Response.ok().entity(formatMap(result)).build()
         } finally {
             tx.close()
         }
+        // only queries that parsed and validated are stored, in their own transaction, the query already ran if that fails
+        if (valid && register && registration != null) {
+            try {
+                PersistedQueries.register(db, registration, query)
+            } catch (e: Exception) {
+                log.warn("Could not register persisted query {}: {}", registration, e.message)
+            }
+        }
+        return response
     }
 
+    // automatic persisted queries: a query sent with its hash is registered once it ran, a hash sent alone is resolved
+    private fun resolveQuery(params: Map<String, Any?>): String? {
+        val query = params["query"]?.toString()
+        val hash = persistedHash(params) ?: return query ?: throw IllegalArgumentException("No query provided")
+        return query ?: PersistedQueries.lookup(db, hash)
+    }
+
+    // the hash to register the query under, it has to match the query text
+    private fun registration(params: Map<String, Any?>): String? {
+        val query = params["query"]?.toString() ?: return null
+        val hash = persistedHash(params) ?: return null
+        if (!PersistedQueries.matches(hash, query)) throw IllegalArgumentException("provided sha does not match query")
+        return hash
+    }
+
+    private fun persistedHash(params: Map<String, Any?>) = (getMap(params, "extensions")["persistedQuery"] as? Map<*, *>)?.get("sha256Hash")?.toString()
+
+    private fun getVariables(requestBody: Map<String, Any?>): Map<String, Any> = getMap(requestBody, "variables")
+
     @Suppress("UNCHECKED_CAST")
-    private fun getVariables(requestBody: Map<String, Any?>): Map<String, Any> {
-        val varParam = requestBody["variables"]
-        return when (varParam) {
-            is String -> parseMap(varParam)
-            is Map<*, *> -> varParam as Map<String, Any>
+    private fun getMap(requestBody: Map<String, Any?>, key: String): Map<String, Any> {
+        val param = requestBody[key]
+        return when (param) {
+            is String -> parseMap(param)
+            is Map<*, *> -> param as Map<String, Any>
             else -> emptyMap()
         }
     }
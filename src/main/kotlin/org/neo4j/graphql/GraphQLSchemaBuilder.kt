@@ -15,10 +15,16 @@ import org.neo4j.graphql.CypherGenerator.Companion.DEFAULT_CYPHER_VERSION
 import org.neo4j.graphql.CypherGenerator.Companion.formatAnyValue
 import org.neo4j.helpers.collection.Iterators
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.function.Supplier
 import org.neo4j.graphql.util.*
 import org.neo4j.graphql.util.inner
 
-class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
+class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>, previous: SchemaTypeCache? = null, val snapshot: SchemaSnapshot = GraphSchemaScanner.snapshot(),
+                           val statementCache: StatementCache? = null, val batchRootFields: Boolean = false, val rootFieldExecutor: Executor? = null,
+                           val connections: Boolean = false, val indexHints: Boolean = false, val inlineCypher: Boolean = CypherGenerator.DEFAULT_INLINE_CYPHER,
+                           val batchCypher: Boolean = CypherGenerator.DEFAULT_BATCH_CYPHER, val maxCost: Long = 0) {
 
     object ArgumentProperties {
         interface ArgumentProperty {
@@ -133,7 +139,7 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
             }
 
             val targetType = fieldDefinition.type.inner()
-            val md = metaDatas.find { it.type == targetType }
+            val md = typesByName[targetType]
             val cypher = fieldDefinition.cypher() ?: throw IllegalStateException("No @cypher annotation on field $fieldName")
 
             val needNesting = !cypher.passThrough && md?.let { env.selectionSet.get().subFieldsList.any { selections -> selections.fields.any { md.hasRelationship(it.name)  || md.cypherFor(it.name)!=null } } } ?: false
@@ -141,9 +147,10 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
             val arguments = fieldDefinition.inputValueDefinitions.associate { arg -> arg.name to env.getArgument<Any>(arg.name) }
             val params = arguments // + mapOf("__params__" to arguments)
             val isMutation = env.graphQLSchema?.mutationType == env.parentType
-            val statement = if (needNesting) CypherGenerator.instance().generateQueryForField(field, fieldDefinition, isMutation, params = params) else cypher.statement
+            val requestVariables = variables(env.getContext<GraphQLContext>())
+            val query = if (needNesting) CypherGenerator.instance(indexHints, inlineCypher, batchCypher).generateQueryForField(field, fieldDefinition, isMutation, params = requestVariables, metaDatas = typesByName, filterFields = filterFields) else CypherQuery(cypher.statement)
             val finalParams = if (isMutation || cypher.passThrough) params else filterParams(params)
-            return execute(statement, finalParams, { result -> asEntityList(result, returnType)})
+            return execute(query.query, withGeneratedParams(requestVariables + finalParams, query), { result -> asEntityList(result, returnType)})
         }
 
         return fields.map { field ->
@@ -324,13 +331,43 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
                 .build()
     }
 
+    data class FilterField(val name: String, val op: Operators, val relationship: MetaData.RelationshipInfo? = null)
+
+    /**
+     * The build the data fetchers of the generated fields of a type run against. The fetchers only hold their owner, not the
+     * builder that created them, so a build that reuses the fields takes them over.
+     */
+    class FieldOwner(@Volatile var builder: GraphQLSchemaBuilder)
+
     companion object {
+        const val CONFIG_BATCH = "graphql.execution.batch"
+        const val CONFIG_CONNECTIONS = "graphql.schema.connections"
+        const val CONFIG_INDEX_HINTS = "graphql.execution.indexHints"
+        const val CONFIG_INLINE_CYPHER = "graphql.execution.inlineCypher"
+        const val CONFIG_BATCH_CYPHER = "graphql.execution.batchCypher"
+        const val CONFIG_MAX_COST = "graphql.execution.maxCost"
+        private val CONNECTION_ARGUMENTS = setOf("orderBy", "first", "after", "last", "before")
 
         @JvmStatic fun buildSchema(db: GraphDatabaseService): GraphQLSchema {
-            GraphSchemaScanner.databaseSchema(db)
+            return schemaBuilder(db).buildSchema()
+        }
 
+        /** builds from the given snapshot if there is one, otherwise from the stored IDL or a full scan of the database */
+        fun schemaBuilder(db: GraphDatabaseService, previous: SchemaTypeCache? = null, statementCache: StatementCache? = null, live: SchemaSnapshot? = null,
+                          rootFieldExecutor: Executor? = null): GraphQLSchemaBuilder {
+            val snapshot = live ?: GraphSchemaScanner.databaseSchema(db)
 
-            return GraphQLSchemaBuilder(GraphSchemaScanner.allMetaDatas()).buildSchema()
+            return GraphQLSchemaBuilder(snapshot.metaDatas(), previous, snapshot, statementCache, db.config(CONFIG_BATCH)?.trim()?.toBoolean() ?: false, rootFieldExecutor,
+                    db.config(CONFIG_CONNECTIONS)?.trim()?.toBoolean() ?: false, db.config(CONFIG_INDEX_HINTS)?.trim()?.toBoolean() ?: false,
+                    db.config(CONFIG_INLINE_CYPHER)?.trim()?.toBoolean() ?: CypherGenerator.DEFAULT_INLINE_CYPHER,
+                    db.config(CONFIG_BATCH_CYPHER)?.trim()?.toBoolean() ?: CypherGenerator.DEFAULT_BATCH_CYPHER,
+                    maxCost(db))
+        }
+
+        // a typo must not silently switch the budget off
+        private fun maxCost(db: GraphDatabaseService): Long {
+            val value = db.config(CONFIG_MAX_COST)?.trim() ?: return 0
+            return value.toLongOrNull()?.takeIf { it >= 0 } ?: throw IllegalArgumentException("Invalid value '$value' for $CONFIG_MAX_COST, expected a number of rows, 0 for no limit")
         }
 
         private fun graphQLDirectives() = setOf(
@@ -360,10 +397,37 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
     }
 
     val typeMetaDatas = metaDatas.filterNot {  it.isInterface }
-    val definitions = IDLParser.parseDefintions(GraphSchemaScanner.schema)
-    val enums: MutableMap<String, GraphQLEnumType> = enumsFromDefinitions(definitions).toMutableMap()
-    val scalars = scalarsFromDefinitions(definitions)
-    val inputTypes: MutableMap<String, GraphQLInputObjectType> = inputTypesFromDefinitions(definitions, enums).toMutableMap()
+    // data fetchers resolve types against the MetaData this schema was built from, not whatever was scanned since
+    val typesByName: Map<String, MetaData> = metaDatas.associateBy { it.type }
+    /** per type the filter input field names with the property or relationship and operator they filter on, set when the schema is built */
+    var filterFields: Map<String, Map<String, FilterField>> = emptyMap()
+        private set
+    // names of the query fields that read nodes of a type, only those are combined into one statement
+    private val nodeQueryFields: MutableSet<String> = HashSet()
+    val definitions = IDLParser.parseDefintions(snapshot.idl)
+    private val definitionsKey = definitions.filterNot { it is ObjectTypeDefinition || it is InterfaceTypeDefinition }.joinToString("\n") { AstPrinter.printAst(it) }
+    // the data fetchers keep this builder alive, it must not keep the previous build alive in turn, so it is dropped after the build
+    private var reuse = previous?.takeIf { it.definitionsKey == definitionsKey }
+    private val reusableTypes = reuse?.reusableTypes(metaDatas) ?: emptySet()
+    val enums: MutableMap<String, GraphQLEnumType> = (reuse?.definitionEnums ?: enumsFromDefinitions(definitions)).toMutableMap()
+    val scalars = reuse?.scalars ?: scalarsFromDefinitions(definitions)
+    val inputTypes: MutableMap<String, GraphQLInputObjectType> = (reuse?.definitionInputTypes ?: inputTypesFromDefinitions(definitions, enums)).toMutableMap()
+    private val definitionEnums = enums.toMap()
+    private val definitionInputTypes = inputTypes.toMap()
+
+    var typeCache: SchemaTypeCache? = null
+        private set
+
+    /** hands the types of this build over to the next one, the builder doesn't keep them */
+    fun releaseTypeCache(): SchemaTypeCache? = typeCache.also { typeCache = null }
+
+    init {
+        // generated argument types of reused types have to be the same instances the reused types refer to
+        reusableTypes.forEach { type ->
+            reuse?.orderings?.get(type)?.let { enums.put(it.name, it) }
+            reuse?.filterTypes?.get(type)?.let { inputTypes.put(it.name, it) }
+        }
+    }
 
     fun buildSchema() : GraphQLSchema {
 
@@ -372,38 +436,65 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
         val interfaceTypes = dictionary.first
         val objectTypes = dictionary.second
 
-        val mutationsFromSchema = GraphSchemaScanner.schema?.
+        val mutationsFromSchema = snapshot.idl?.
                 let { IDLParser.parseMutations(it) }?.
                 let { parsedMutations -> toDynamicQueryOrMutationFields(parsedMutations, objectTypes) } ?: emptyMap()
 
-        val queriesFromSchema = GraphSchemaScanner.schema?.
+        val queriesFromSchema = snapshot.idl?.
                 let { IDLParser.parseQueries(it) }?.
                 let { parsedQueries -> toDynamicQueryOrMutationFields(parsedQueries, objectTypes) } ?: emptyMap()
 
+        val fieldNamesKey = queriesFromSchema.keys.joinToString(",") + "|" + mutationsFromSchema.keys.joinToString(",")
+        val reuseFields = reuse?.fieldNamesKey == fieldNamesKey
+        val owners = metaDatas.associate { md ->
+            md.type to (reuse?.owners?.get(md.type)?.takeIf { reuseFields && reusableTypes.contains(md.type) } ?: FieldOwner(this))
+        }
+
         var existingMutations = mutationsFromSchema.keys
-        val generatedTypeMutations = GraphSchemaScanner.allMetaDatas().flatMap { mutationField(it,existingMutations) }
+        val typeMutations = metaDatas.associate { md ->
+            md.type to (reuse?.mutationFields?.get(md.type)?.takeIf { reuseFields && reusableTypes.contains(md.type) } ?: mutationField(md, existingMutations, owners.getValue(md.type)))
+        }
+        val generatedTypeMutations = typeMutations.values.flatten()
         existingMutations += generatedTypeMutations.map { it.name }
-        val generatedRelationshipMutations = GraphSchemaScanner.allMetaDatas().flatMap { relationshipMutationFields(it, enums, existingMutations) }
+        val relationshipMutations = metaDatas.associate { md ->
+            md.type to (reuse?.relationshipMutationFields?.get(md.type)?.takeIf { reuseFields && reusableTypes.contains(md.type) } ?: relationshipMutationFields(md, enums, existingMutations, owners.getValue(md.type)))
+        }
+        val generatedRelationshipMutations = relationshipMutations.values.flatten()
 
         val mutationType: GraphQLObjectType = newObject().name("MutationType")
                 .fields(generatedTypeMutations + generatedRelationshipMutations + mutationsFromSchema.values)
                 .build()
 
-        val queriesFromTypes = queryFields(metaDatas, queriesFromSchema)
+        val queriesFromTypes = queryFields(metaDatas, queriesFromSchema, if (reuseFields) reusableTypes else emptySet(), owners)
+
+        val connectionFields = if (connections) connectionFields(metaDatas, queriesFromSchema.keys + queriesFromTypes.map { it.name }) else emptyList()
 
         val queryType = newObject().name("QueryType")
-                .fields(queriesFromTypes + queriesFromSchema.values)
+                .fields(queriesFromTypes + connectionFields + queriesFromSchema.values)
                 .build()
 
         // todo this was missing, it was only called by the builder: SchemaUtil().replaceTypeReferences(graphQLSchema)
 
         val allTypes = objectTypes + interfaceTypes + enums + inputTypes
 
-        return GraphQLSchema.newSchema()
+        typeCache = SchemaTypeCache(definitionsKey, fieldNamesKey, definitionEnums, scalars, definitionInputTypes,
+                metaDatas.associate { it.type to it.fingerprint() },
+                objectTypes,
+                metaDatas.mapNotNull { md -> enums["_${md.type}Ordering"]?.let { md.type to it } }.toMap(),
+                metaDatas.mapNotNull { md -> inputTypes[filterName(md.type)]?.let { md.type to it } }.toMap(),
+                metaDatas.zip(queriesFromTypes).associate { (md, field) -> md.type to field },
+                typeMutations, relationshipMutations, owners, reusableTypes.size)
+        filterFields = metaDatas.mapNotNull { md -> inputTypes[filterName(md.type)]?.let { md.type to filterFields(md, it) } }.toMap()
+        // reused fields run against this build from now on, with its config and snapshot, the previous build is no longer referenced
+        owners.values.forEach { it.builder = this }
+
+        val schema = GraphQLSchema.newSchema()
                 .query(queryType)
                 .mutation(mutationType)
                 .additionalTypes(allTypes.values.toSet())
                 .additionalDirectives(graphQLDirectives()).build()
+        reuse = null
+        return schema
     }
 
     fun enumsFromDefinitions(definitions: List<Definition<*>>) = IDLParser.filterEnums(definitions).associate { e ->
@@ -463,11 +554,15 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
         return inType
     }
 
-    fun queryFields(metaDatas: Iterable<MetaData>, queriesFromSchema: Map<String, GraphQLFieldDefinition> = emptyMap()): List<GraphQLFieldDefinition> {
+    fun queryFields(metaDatas: Iterable<MetaData>, queriesFromSchema: Map<String, GraphQLFieldDefinition> = emptyMap(), reusable: Set<String> = emptySet(),
+                    owners: Map<String, FieldOwner> = emptyMap()): List<GraphQLFieldDefinition> {
         val existing = queriesFromSchema.keys
         return metaDatas
                 .map { md ->
+                    val reused = if (reusable.contains(md.type)) reuse?.queryFields?.get(md.type) else null
+                    if (reused != null) return@map reused.also { nodeQueryFields.add(it.name) }
                     val hasProperties = md.properties.isNotEmpty()
+                    val owner = owners[md.type] ?: FieldOwner(this)
                     withFirstOffset(
                             newFieldDefinition()
                             .name(handleCollisions(existing,md.type))
@@ -476,11 +571,47 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
                             .argument(propertiesAsListArguments(md))
                             .argumentIf(hasProperties,{orderByArgument(md)})
                             .argumentIf(hasProperties, {filterArgument(md)})
-                            .dataFetcher({ env -> fetchGraphData(md, env) })
-                    ).build()
+                            .dataFetcher({ env -> owner.builder.run { fetchRootField(typesByName[md.type] ?: md, env) } })
+                    ).build().also { nodeQueryFields.add(it.name) }
                 }
     }
 
+    /** a Relay style connection per type, paged with cursors that hold the sort key and the node id instead of an offset */
+    fun connectionFields(metaDatas: Iterable<MetaData>, existing: Set<String>): List<GraphQLFieldDefinition> {
+        val pageInfo = newObject().name("_PageInfo").description("Position of a connection page")
+                .field(newFieldDefinition().name("hasNextPage").type(GraphQLNonNull(GraphQLBoolean)).build())
+                .field(newFieldDefinition().name("hasPreviousPage").type(GraphQLNonNull(GraphQLBoolean)).build())
+                .field(newFieldDefinition().name("startCursor").type(GraphQLString).build())
+                .field(newFieldDefinition().name("endCursor").type(GraphQLString).build())
+                .build()
+        return metaDatas.map { md ->
+            val edge = newObject().name("_${md.type}Edge").description("${md.type} with its cursor")
+                    .field(newFieldDefinition().name("node").type(GraphQLTypeReference(md.type)).build())
+                    .field(newFieldDefinition().name("cursor").type(GraphQLNonNull(GraphQLString)).build())
+                    .build()
+            val connection = newObject().name("_${md.type}Connection").description("Page of ${md.type} nodes")
+                    .field(newFieldDefinition().name("edges").type(GraphQLList(edge)).build())
+                    .field(newFieldDefinition().name("pageInfo").type(GraphQLNonNull(pageInfo)).build())
+                    .build()
+            val hasProperties = md.properties.isNotEmpty()
+            newFieldDefinition()
+                    .name(handleCollisions(existing, md.type + "Connection"))
+                    .type(connection)
+                    .argument(ArgumentProperties.NodeId.toArgument())
+                    .argument(newArgument().name("_ids").type(GraphQLList(GraphQLLong)).build())
+                    .argument(propertiesAsArguments(md))
+                    .argument(propertiesAsListArguments(md))
+                    .argumentIf(hasProperties, { orderByArgument(md) })
+                    .argumentIf(hasProperties, { filterArgument(md) })
+                    .argument(newArgument().name("first").type(GraphQLInt).build())
+                    .argument(newArgument().name("after").type(GraphQLString).build())
+                    .argument(newArgument().name("last").type(GraphQLInt).build())
+                    .argument(newArgument().name("before").type(GraphQLString).build())
+                    .dataFetcher { env -> fetchConnection(md, env) }
+                    .build()
+        }
+    }
+
     fun argumentValue(env:DataFetchingEnvironment, name: String) =
             env.getArgument<Any>(name).let { v -> if (v is Value<*>) v.extract() else v }
 
@@ -490,7 +621,7 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
         // return props.associate { it.fieldName to argumentValue(env, it.fieldName) }
     }
 
-    fun mutationField(metaData: MetaData, existing: Set<String>) : List<GraphQLFieldDefinition> {
+    fun mutationField(metaData: MetaData, existing: Set<String>, owner: FieldOwner = FieldOwner(this)) : List<GraphQLFieldDefinition> {
         val idProperty = metaData.idProperty()
 
         val updatableProperties = metaData.properties.values.filter { !it.isComputed() }
@@ -500,11 +631,11 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
                 .description("Creates a ${metaData.type} entity")
                 .type(GraphQLString)
                 .argument(updatableProperties.map { GraphQLArgument(it.fieldName, graphQlInType(it.type)) })
-                .dataFetcher{ env ->
+                .dataFetcher{ env -> owner.builder.run {
                     val statement = "CREATE (node:${metaData.type}) SET node = {properties} " + metaData.labels.map { "SET node:`$it`" }.joinToString(" ")
                     val params = mapOf<String, Any>("properties" to toArguments(updatableProperties,env))
                     executeUpdate(env, statement, params)
-                }
+                } }
                 .build()
 
 
@@ -519,7 +650,7 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
                     .type(GraphQLString)
                     .argument(GraphQLArgument(idProperty.fieldName, graphQlInType(idProperty.type)))
                     .argument(nonIdProperties.map { GraphQLArgument(it.fieldName, graphQlInType(it.type)) })
-                    .dataFetcher { env ->
+                    .dataFetcher { env -> owner.builder.run {
                         val params = mapOf<String, Any>(
                                 "id" to argumentValue(env,idProperty.fieldName),
                                 "properties" to toArguments(nonIdProperties,env))
@@ -527,7 +658,7 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
                         val statement = "MATCH (node:`${metaData.type}` {`${idProperty.fieldName}`:{id}}) SET node += {properties}"
 
                         executeUpdate(env, statement, params)
-                    }
+                    } }
                     .build()
 
             val mergeMutation = GraphQLFieldDefinition.newFieldDefinition()
@@ -536,7 +667,7 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
                     .type(GraphQLString)
                     .argument(GraphQLArgument(idProperty.fieldName, graphQlInType(idProperty.type)))
                     .argument(nonIdProperties.map { GraphQLArgument(it.fieldName, graphQlInType(it.type)) })
-                    .dataFetcher { env ->
+                    .dataFetcher { env -> owner.builder.run {
                         val params = mapOf<String, Any>(
                                 "id" to argumentValue(env, idProperty.fieldName),
                                 "properties" to toArguments(nonIdProperties, env))
@@ -544,7 +675,7 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
                         val statement = "MERGE (node:`${metaData.type}` {`${idProperty.fieldName}`:{id}}) SET node += {properties}"
 
                         executeUpdate(env, statement, params)
-                    }
+                    } }
                     .build()
 
             val deleteMutation = GraphQLFieldDefinition.newFieldDefinition()
@@ -552,14 +683,14 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
                     .description("Deletes a ${metaData.type} entity")
                     .type(GraphQLString)
                     .argument(GraphQLArgument(idProperty.fieldName, graphQlInType(idProperty.type)))
-                    .dataFetcher { env ->
+                    .dataFetcher { env -> owner.builder.run {
                         val params = mapOf<String, Any>("id" to argumentValue(env,idProperty.fieldName))
 
                         val statement = "MATCH (node:`${metaData.type}` {`${idProperty.fieldName}`:{id}}) DETACH DELETE node"
 
                         executeUpdate(env, statement, params)
 
-                    }
+                    } }
                     .build()
 
             return listOf(createMutation, updateMutation, mergeMutation, deleteMutation)
@@ -569,10 +700,10 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
 
     private fun handleCollisions(existing: Set<String>, name: String) = if (existing.contains(name)) name + "_" else name
 
-    fun relationshipMutationFields(metaData: MetaData, inputs: Map<String, GraphQLInputType>, existing: Set<String>) : List<GraphQLFieldDefinition> {
+    fun relationshipMutationFields(metaData: MetaData, inputs: Map<String, GraphQLInputType>, existing: Set<String>, owner: FieldOwner = FieldOwner(this)) : List<GraphQLFieldDefinition> {
         val idProperty = metaData.idProperty()
         return  metaData.relationships.values.flatMap {  rel ->
-            val targetMeta = GraphSchemaScanner.getMetaData(rel.label)!!
+            val targetMeta = typesByName[rel.label]!!
             val targetIdProperty = targetMeta.idProperty()
             if (idProperty == null || targetIdProperty == null) emptyList()
             else {
@@ -585,21 +716,21 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
                         .description("Adds ${rel.fieldName.capitalize()} to ${metaData.type} entity")
                         .type(GraphQLString)
                         .argument(sourceArgument).argument(targetArguments)
-                        .dataFetcher { env ->
+                        .dataFetcher { env -> owner.builder.run {
                             val statement = """MATCH (from:`${metaData.type}` {`${idProperty.fieldName}`:{source}})
                                                MATCH (to:`${targetMeta.type}`) WHERE to.`${targetIdProperty.fieldName}` IN {targets}
                                                MERGE (from)$left-[:`${rel.type}`]-$right(to)"""
 
                             val params = mapOf<String,Any>("source" to argumentValue(env,idProperty.fieldName), "targets" to  argumentValue(env,rel.fieldName))
                             executeUpdate(env, statement, params)
-                        }
+                        } }
                         .build(),
                 GraphQLFieldDefinition.newFieldDefinition()
                         .name(handleCollisions(existing, "delete" + metaData.type + rel.fieldName.capitalize()))
                         .description("Deletes ${rel.fieldName.capitalize()} from ${metaData.type} entity")
                         .type(GraphQLString)
                         .argument(sourceArgument).argument(targetArguments)
-                        .dataFetcher { env ->
+                        .dataFetcher { env -> owner.builder.run {
                             val statement = """MATCH (from:`${metaData.type}` {`${idProperty.fieldName}`:{source}})
                                                $left-[rel:`${rel.type}`]-$right(to:`${targetMeta.type}`)
                                                WHERE to.`${targetIdProperty.fieldName}` IN {targets}
@@ -608,7 +739,7 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
 
                             val params = mapOf<String,Any>("source" to argumentValue(env,idProperty.fieldName), "targets" to  argumentValue(env,rel.fieldName))
                             executeUpdate(env, statement, params)
-                        }
+                        } }
                         .build()
                 )
             }
@@ -624,31 +755,147 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
     }
 
 
+    /**
+     * Root fields of a query with several root selections run in parallel on the executor, each in its own read transaction,
+     * the milliseconds each of them took are reported in the extensions. Fields that are combined into one statement are not.
+     */
+    private fun fetchRootField(md: MetaData, env: DataFetchingEnvironment): Any {
+        val executor = rootFieldExecutor
+        val operation = env.operationDefinition
+        if (executor == null || operation.operation != OperationDefinition.Operation.QUERY || env.parentType != env.graphQLSchema.queryType
+                || operation.selectionSet.selections.size < 2 || (batchRootFields && fetchRootFields(env).isNotEmpty())) {
+            return fetchGraphData(md, env)
+        }
+        val ctx = env.getContext<GraphQLContext>()
+        val key = env.field.alias ?: env.field.name
+        return CompletableFuture.supplyAsync(Supplier {
+            val start = System.nanoTime()
+            val tx = ctx.db.beginTx()
+            try {
+                val data = fetchGraphData(md, env)
+                tx.success()
+                data
+            } finally {
+                tx.close()
+                ctx.timing(key, (System.nanoTime() - start) / 1_000_000)
+            }
+        }, executor)
+    }
+
     private fun fetchGraphData(md: MetaData, env: DataFetchingEnvironment): List<Map<String, Any>> {
+        checkCost(md, env)
+        if (batchRootFields) fetchRootFields(env)[env.field.alias ?: env.field.name]?.let { return it }
         val ctx = env.getContext<GraphQLContext>()
         val db = ctx.db
         val fragments = env.fragmentsByName
-        val generator = CypherGenerator.instance()
-        val parameters = ctx.parameters.toMutableMap()
-        parameters.putAll(env.arguments)
+        val generator = CypherGenerator.instance(indexHints, inlineCypher, batchCypher)
+        val parameters = variables(ctx)
         return env.fields
-                .map { it to generator.generateQueryForField(it, env.fieldDefinition.definition, fragments = env.fragmentsByName, params = parameters) }
+                .map { field ->
+                    val generate = { generator.generateQueryForField(field, env.fieldDefinition.definition, fragments = fragments, params = parameters, metaDatas = typesByName, filterFields = filterFields) }
+                    field to (statementCache?.statement(snapshot.version, field, fragments, parameters, generate) ?: generate())
+                }
                 .flatMap({ pair ->
                     val (field, query) = pair
                     val directives = field.directives.associate { it.name to it }
-                    val statement = applyDirectivesToStatement(generator, query, directives)
+                    val statement = applyDirectivesToStatement(generator, query.query, directives)
                     ctx.log?.debug(statement)
                     println(statement)
 //                    val parameters = resolveParameters(env.graphQLSchema, env.fields,ctx.parameters, env.fieldTypeInfo)
-                    val result = db.execute(statement, filterParams(parameters))
+                    val result = db.execute(statement, withGeneratedParams(parameters, query))
                     val list = Iterators.asList(result)
                     storeResultMetaData(ctx, query, result, directives)
                     list
                 })
     }
 
+    /** estimates the cost of the root field from the counts store, the field that takes the operation over the budget is rejected before it runs */
+    private fun checkCost(md: MetaData, env: DataFetchingEnvironment) {
+        val ctx = env.getContext<GraphQLContext>()
+        val key = env.field.alias ?: env.field.name
+        val cost = GraphCounts.read(ctx.db) { counts -> QueryCost(counts, typesByName, env.fragmentsByName, variables(ctx)).of(env.field, md) }
+        val total = ctx.cost(key, cost)
+        if (maxCost <= 0 || total <= maxCost) return
+        if (total == cost) throw IllegalArgumentException("Estimated cost $cost of $key exceeds the limit of $maxCost, use first to limit the nested fields")
+        throw IllegalArgumentException("Estimated cost $total of the operation including $key exceeds the limit of $maxCost, use first to limit the nested fields")
+    }
+
+    /**
+     * A page of a connection: the nodes after the cursor, or before it for `last`, in the order of the orderBy property and the node id.
+     * Nodes without that property are not part of the connection. The cursor holds only one property, so more orderBy entries are an error.
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun fetchConnection(md: MetaData, env: DataFetchingEnvironment): Map<String, Any?> {
+        val ctx = env.getContext<GraphQLContext>()
+        val after = env.getArgument<String>("after")
+        val before = env.getArgument<String>("before")
+        val last = env.getArgument<Int>("last")
+        val backward = last != null || before != null
+        val orderBy = env.getArgument<List<String>>("orderBy").orEmpty()
+        if (orderBy.size > 1) throw IllegalArgumentException("Connections can only be ordered by one property, got orderBy $orderBy")
+        val ordering = orderBy.firstOrNull()
+        val keyset = Keyset(ordering?.substringBeforeLast('_'), ordering?.endsWith("_desc") != true, if (backward) last else env.getArgument<Int>("first"),
+                backward, (if (backward) before else after)?.let { Keyset.decode(it) })
+
+        val node = Field(md.type, env.field.arguments.filterNot { CONNECTION_ARGUMENTS.contains(it.name) }, nodeSelection(env.field))
+        val parameters = variables(ctx)
+        val query = CypherGenerator.instance(indexHints, inlineCypher, batchCypher).generateConnectionQuery(node, keyset, env.fragmentsByName, parameters, typesByName, filterFields)
+        ctx.log?.debug(query.query)
+        val result = ctx.db.execute(query.query, withGeneratedParams(parameters, query))
+        val rows = Iterators.asList(result)
+        storeResultMetaData(ctx, query, result, emptyMap())
+
+        val more = keyset.size != null && rows.size > keyset.size
+        val page = rows.take(keyset.size ?: rows.size).let { if (backward) it.asReversed() else it }
+        val edges = page.map { row -> mapOf("node" to row, "cursor" to Keyset.encode(row["_cursor"] as List<Any?>)) }
+        val pageInfo = mapOf("hasNextPage" to (if (backward) before != null else more), "hasPreviousPage" to (if (backward) more else after != null),
+                "startCursor" to edges.firstOrNull()?.get("cursor"), "endCursor" to edges.lastOrNull()?.get("cursor"))
+        return mapOf("edges" to edges, "pageInfo" to pageInfo)
+    }
+
+    // the selection of `edges { node { ... } }`, empty if only the page info is requested
+    private fun nodeSelection(field: Field) = field.selectionSet?.selections.orEmpty().filterIsInstance<Field>().filter { it.name == "edges" }
+            .flatMap { it.selectionSet?.selections.orEmpty().filterIsInstance<Field>() }
+            .firstOrNull { it.name == "node" }?.selectionSet ?: SelectionSet(emptyList<Selection<*>>())
+
+    /**
+     * Runs all root fields of a query operation as one statement when the first of them is fetched, the rows are split by field.
+     * Operations with other root selections or with directives are not combined, their fields are fetched one by one.
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun fetchRootFields(env: DataFetchingEnvironment): Map<String, List<Map<String, Any>>> {
+        val ctx = env.getContext<GraphQLContext>()
+        ctx.rootResults?.let { return it }
+        val operation = env.operationDefinition
+        val fields = operation.selectionSet.selections.filterIsInstance<Field>()
+        val keys = fields.map { it.alias ?: it.name }
+        if (operation.operation != OperationDefinition.Operation.QUERY || fields.size < 2 || fields.size != operation.selectionSet.selections.size
+                || keys.toSet().size != keys.size || fields.any { !nodeQueryFields.contains(it.name) || it.directives.isNotEmpty() }) {
+            return emptyMap<String, List<Map<String, Any>>>().also { ctx.rootResults = it }
+        }
+        val queryType = env.graphQLSchema.queryType
+        val fragments = env.fragmentsByName
+        val generator = CypherGenerator.instance(indexHints, inlineCypher, batchCypher)
+        val parameters = variables(ctx)
+        val generate = { generator.generateQueryForFields(fields.map { it to queryType.getFieldDefinition(it.name).definition }, fragments, parameters, typesByName, filterFields) }
+        val query = statementCache?.statement(snapshot.version, fields, fragments, parameters, generate) ?: generate()
+        ctx.log?.debug(query.query)
+        val result = ctx.db.execute(query.query, withGeneratedParams(parameters, query))
+        val rows = keys.associateTo(LinkedHashMap<String, MutableList<Map<String, Any>>>()) { it to ArrayList<Map<String, Any>>() }
+        result.forEach { row -> rows[keys[(row["_field"] as Number).toInt()]]!!.add(row["_row"] as Map<String, Any>) }
+        storeResultMetaData(ctx, query, result, emptyMap())
+        ctx.rootResults = rows
+        return rows
+    }
+
     private fun filterParams(parameters: Map<String, Any>) = parameters.filterKeys { it != "orderBy" && it != "filter" }.filterNot { it.value is Value<*> }
 
+    // the generated statements reference request variables by name and bind literals as additional parameters
+    private fun variables(ctx: GraphQLContext) = ctx.parameters.filterNot { it.value is Value<*> }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun withGeneratedParams(parameters: Map<String, Any>, query: CypherQuery) = (parameters + query.params) as Map<String, Any>
+
     private fun applyDirectivesToStatement(generator: CypherGenerator, query: String, directives: Map<String, Directive>) :String {
         val parts = mutableListOf<String>()
 //        if (directives.containsKey("cypher"))  { parts.add(directives.get("cypher").arguments.first().value.toString())  }
@@ -659,11 +906,13 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
     }
 
     // todo make it dependenden on directive
-    private fun storeResultMetaData(ctx: GraphQLContext, query: String, result: Result, directives: Map<String, Directive>) {
+    private fun storeResultMetaData(ctx: GraphQLContext, query: CypherQuery, result: Result, directives: Map<String, Directive>) {
         ctx.store("type", result.queryExecutionType.queryType().name) // todo other query type information
         if (directives.containsKey("explain") || directives.containsKey("profile")) {
             ctx.store("columns", result.columns())
-            ctx.store("query", query)
+            ctx.store("query", query.query)
+            query.strategy?.let { ctx.store("strategy", it) }
+            ctx.store("params", query.params)
             ctx.store("warnings", result.notifications.map { "${it.severity.name}-${it.code}(${it.position.line}:${it.position.column}) ${it.title}:\n${it.description}" })
             ctx.store("plan", result.executionPlanDescription.toString())
         }
@@ -679,7 +928,9 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
         val mutableObjectTypes = mutableMapOf<String,GraphQLObjectType>()
         val interfaceDefinitions = interfaces.associate { it.type to toGraphQLInterfaceType(it, { mutableObjectTypes.get(it) }) }
 
-        val objectTypes = nonInterfaces.associate { it.type  to toGraphQLObjectType(it, interfaceDefinitions) }
+        val objectTypes = nonInterfaces.associate { md ->
+            md.type to (reuse?.objectTypes?.get(md.type)?.takeIf { reusableTypes.contains(md.type) } ?: toGraphQLObjectType(md, interfaceDefinitions))
+        }
         mutableObjectTypes.putAll(objectTypes) // kinda weird though the cyclcic dependency, we should add _labels  to the cypher result and then decide it from there, on
         return Pair(interfaceDefinitions, objectTypes)
     }
@@ -729,6 +980,16 @@ class GraphQLSchemaBuilder(val metaDatas: Collection<MetaData>) {
 
     private fun filterName(name: String) = "_${name}Filter"
 
+    // all fields of the filter input type with what they filter on, so a filter key doesn't have to be parsed per request
+    private fun filterFields(md: MetaData, type: GraphQLInputObjectType): Map<String, FilterField> {
+        val names = type.fields.map { it.name }.toSet()
+        val fields = HashMap<String, FilterField>()
+        val ops = enumValues<Operators>().filter { it.suffix.isNotEmpty() || it == Operators.EQ }
+        md.properties.values.forEach { p -> ops.forEach { op -> op.fieldName(p.fieldName).takeIf { names.contains(it) }?.let { fields.putIfAbsent(it, FilterField(p.fieldName, op)) } } }
+        md.relationships.values.forEach { ri -> ops.forEach { op -> op.fieldName(ri.fieldName).takeIf { names.contains(it) }?.let { fields.putIfAbsent(it, FilterField(ri.fieldName, op, ri)) } } }
+        return Collections.unmodifiableMap(fields)
+    }
+
     internal fun propertiesAsListArguments(md: MetaData): List<GraphQLArgument> {
         return md.properties.values.map {
             newArgument().name(it.fieldName+"s").description(it.fieldName + "s is list variant of "+it.fieldName + " of " + md.type).type(GraphQLList(graphQlInType(it.type, false))).build()
@@ -2,6 +2,9 @@ package org.neo4j.graphql
 
 import graphql.GraphQL
 import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.kernel.internal.GraphDatabaseAPI
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicLong
 
 /**
@@ -10,34 +13,157 @@ import java.util.concurrent.atomic.AtomicLong
  * @since 29.10.16
  */
 object GraphSchema {
-    private var graphql: GraphQL? = null
-    private var lastSchemaElements = 0
+    @Volatile private var graphql: GraphQL? = null
+    @Volatile private var database: GraphDatabaseService? = null
+    @Volatile private var databaseKey: Any? = null
+    @Volatile private var builtEpoch = -1L
+    private val epoch : AtomicLong = AtomicLong()
+    private val changeHandler = SchemaChangeHandler { epoch.incrementAndGet() }
+    @Volatile private var lastIndexElements = 0
+    @Volatile private var typeCache: SchemaTypeCache? = null
     private val lastUpdated : AtomicLong = AtomicLong()
     private val lastCheck : AtomicLong = AtomicLong()
     private val UPDATE_FREQ = 10_000
+    const val CONFIG_INCREMENTAL = "graphql.schema.incremental"
+    @Volatile private var incremental = true
+    const val CONFIG_PARALLEL = "graphql.execution.parallel"
+    @Volatile private var rootFieldExecutor: ThreadPoolExecutor? = null
+
+    private val rebuilding = AtomicBoolean()
+    @Volatile private var pendingRebuild: Future<*>? = null
+    private val rebuilds = AtomicLong()
+    private val staleServed = AtomicLong()
+    private val lastRebuildDuration = AtomicLong()
+    private val documentCache = DocumentCache()
+    private val statementCache = StatementCache()
+    private val rebuildExecutor = Executors.newSingleThreadExecutor { r -> Thread(r, "graphql-schema-rebuild").apply { isDaemon = true } }
 
     @JvmStatic fun getGraphQL(db: GraphDatabaseService): GraphQL {
-        val schemaElements = countSchemaElements(db)
-        if (graphql == null || lastSchemaElements != schemaElements || needUpdate(db)) {
-            lastSchemaElements = schemaElements
-            val graphQLSchema = GraphQLSchemaBuilder.buildSchema(db)
-            graphql = GraphQL.newGraphQL(graphQLSchema).build()
-            lastUpdated.set(System.currentTimeMillis())
+        val current = graphql
+        if (current == null || databaseKey !== keyOf(db)) return rebuild(db)
+        if (builtEpoch != epoch.get() || needUpdate(db)) {
+            // keep serving the previous schema until the background rebuild swaps in the new one
+            staleServed.incrementAndGet()
+            scheduleRebuild(db)
         }
-        return graphql!!
+        return current
+    }
+
+    private fun scheduleRebuild(db: GraphDatabaseService) {
+        if (!rebuilding.compareAndSet(false, true)) return
+        val target = database ?: db
+        pendingRebuild = rebuildExecutor.submit(Runnable {
+            try {
+                rebuild(target)
+            } finally {
+                rebuilding.set(false)
+            }
+        })
+    }
+
+    @Synchronized private fun rebuild(db: GraphDatabaseService): GraphQL {
+        if (databaseKey !== keyOf(db)) watch(db)
+        val current = graphql
+        if (current != null && builtEpoch == epoch.get()) return current
+
+        val start = System.currentTimeMillis()
+        val buildEpoch = epoch.get()
+        changeHandler.refresh(db)
+        val builder = GraphQLSchemaBuilder.schemaBuilder(db, typeCache, statementCache, changeHandler.live(), rootFieldExecutor)
+        val graphQLSchema = builder.buildSchema()
+        typeCache = builder.releaseTypeCache()
+        // a schema derived from the data is kept up to date from commits, an IDL schema is not
+        changeHandler.maintain(if (incremental && builder.snapshot.idl == null) builder.snapshot else null)
+        val newGraphQL = GraphQL.newGraphQL(graphQLSchema)
+                .preparsedDocumentProvider(documentCache.forVersion(builder.snapshot.version))
+                .build()
+        graphql = newGraphQL
+        builtEpoch = buildEpoch
+        lastUpdated.set(System.currentTimeMillis())
+        lastRebuildDuration.set(lastUpdated.get() - start)
+        rebuilds.incrementAndGet()
+        return newGraphQL
+    }
+
+    /** builds the GraphQL schema from a snapshot that was sampled ahead of the first request */
+    @Synchronized @JvmStatic fun warm(db: GraphDatabaseService, snapshot: SchemaSnapshot) {
+        if (databaseKey !== keyOf(db)) watch(db)
+        changeHandler.maintain(if (incremental && snapshot.idl == null) snapshot else null)
+        epoch.incrementAndGet()
+        rebuild(db)
+    }
+
+    /** waits for a scheduled background rebuild to finish */
+    @JvmStatic fun awaitRebuild(timeout: Long = 60, unit: TimeUnit = TimeUnit.SECONDS) {
+        pendingRebuild?.get(timeout, unit)
+    }
+
+    @JvmStatic fun stats(): Map<String, Any> = linkedMapOf<String, Any>(
+            "epoch" to epoch.get(),
+            "builtEpoch" to builtEpoch,
+            "rebuilds" to rebuilds.get(),
+            "rebuilding" to rebuilding.get(),
+            "lastRebuildDuration" to lastRebuildDuration.get(),
+            "reusedTypes" to (typeCache?.reused ?: 0),
+            "lastUpdated" to lastUpdated.get(),
+            "staleServed" to staleServed.get(),
+            "incremental" to (changeHandler.live() != null),
+            "parallel" to (rootFieldExecutor?.corePoolSize ?: 0),
+            "documentCache" to documentCache.stats(),
+            "statementCache" to statementCache.stats(),
+            "persistedQueries" to PersistedQueries.stats())
+
+    private fun watch(db: GraphDatabaseService) {
+        database?.let { try { it.unregisterTransactionEventHandler(changeHandler) } catch (e: Exception) { /* already shut down */ } }
+        db.registerTransactionEventHandler(changeHandler)
+        database = db
+        databaseKey = keyOf(db)
+        lastIndexElements = countIndexElements(db)
+        // generated types and fields of another database must not be reused
+        typeCache = null
+        documentCache.maxSize = db.config(DocumentCache.CONFIG_SIZE, DocumentCache.DEFAULT_SIZE)
+        documentCache.clear()
+        statementCache.maxSize = db.config(StatementCache.CONFIG_SIZE, StatementCache.DEFAULT_SIZE)
+        statementCache.clear()
+        PersistedQueries.maxSize = db.config(PersistedQueries.CONFIG_SIZE, PersistedQueries.DEFAULT_SIZE)
+        PersistedQueries.maxStored = db.config(PersistedQueries.CONFIG_STORED, PersistedQueries.DEFAULT_STORED)
+        incremental = db.config(CONFIG_INCREMENTAL)?.trim()?.toBoolean() ?: true
+        configureRootFieldExecutor(db.config(CONFIG_PARALLEL, 0))
+        changeHandler.maintain(null)
+        graphql = null
+        epoch.incrementAndGet()
     }
 
+    // a full queue, or a pool replaced after the schema was built, runs the field on the request thread in the request transaction
+    private fun configureRootFieldExecutor(threads: Int) {
+        if (threads == (rootFieldExecutor?.corePoolSize ?: 0)) return
+        rootFieldExecutor?.shutdown()
+        rootFieldExecutor = if (threads <= 0) null else ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, ArrayBlockingQueue(threads * 16),
+                ThreadFactory { r -> Thread(r, "graphql-root-field").apply { isDaemon = true } }, RejectedExecutionHandler { r, _ -> r.run() })
+                .apply { allowCoreThreadTimeOut(true) }
+    }
+
+    // procedures get a fresh facade per call, the dependency resolver identifies the underlying database
+    private fun keyOf(db: GraphDatabaseService): Any = (db as? GraphDatabaseAPI)?.dependencyResolver ?: db
+
+    // index, constraint and IDL changes don't show up in transaction data, they are checked at most every UPDATE_FREQ ms
     private fun needUpdate(db: GraphDatabaseService): Boolean {
         val now = System.currentTimeMillis()
         if (now - lastCheck.getAndSet(now) < UPDATE_FREQ) return false
-        return (GraphSchemaScanner.readIdlUpdate(db) > lastUpdated.get())
+        val indexElements = countIndexElements(db)
+        if (GraphSchemaScanner.readIdlUpdate(db) > lastUpdated.get() || indexElements != lastIndexElements) {
+            lastIndexElements = indexElements
+            changeHandler.maintain(null)
+            epoch.incrementAndGet()
+            return true
+        }
+        return false
     }
 
-    fun countSchemaElements(db: GraphDatabaseService): Int {
+    fun countIndexElements(db: GraphDatabaseService): Int {
         val tx = db.beginTx()
         try {
-            val count = db.allLabels.count() + db.allRelationshipTypes.count() + db.allPropertyKeys.count() +
-                    db.schema().constraints.count() + db.schema().indexes.count()
+            val count = db.schema().constraints.count() + db.schema().indexes.count()
             tx.success()
             return count
         } finally {
@@ -45,7 +171,10 @@ object GraphSchema {
         }
     }
 
+    /** drops the schema, the next request rebuilds it from the stored IDL or a full scan of the database */
     @JvmStatic fun reset() {
+        changeHandler.maintain(null)
         graphql = null
+        epoch.incrementAndGet()
     }
 }
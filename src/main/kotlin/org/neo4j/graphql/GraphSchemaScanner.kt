@@ -4,26 +4,50 @@ import org.neo4j.graphdb.Direction
 import org.neo4j.graphdb.GraphDatabaseService
 import org.neo4j.graphdb.Label
 import org.neo4j.graphdb.Node
+import org.neo4j.graphdb.NotFoundException
+import org.neo4j.graphdb.RelationshipType
 import org.neo4j.helpers.collection.Iterators
 import org.neo4j.kernel.impl.core.EmbeddedProxySPI
 import org.neo4j.kernel.impl.core.GraphProperties
+import org.neo4j.kernel.impl.store.id.IdGeneratorFactory
+import org.neo4j.kernel.impl.store.id.IdType
 import org.neo4j.kernel.internal.GraphDatabaseAPI
-import java.util.*
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicLong
 
 class GraphSchemaScanner {
     companion object {
         fun fieldName(type: String) : String = type.split("_").mapIndexed { i, s -> if (i==0) s.toLowerCase() else s.toLowerCase().capitalize()  }.joinToString("")
-        internal val allTypes = LinkedHashMap<String, MetaData>()
-        internal var schema : String? = null
+        /** incoming relationships from nodes of the same label get their own field, so `(:Person)-[:KNOWS]->(:Person)` has `knows` and `knowsIn` */
+        fun fieldName(type: String, out: Boolean, label: String, other: String) : String = if (out || label != other) fieldName(type) else fieldName(type) + "In"
+        @Volatile private var current = SchemaSnapshot.EMPTY
+        private val versions = AtomicLong()
+
+        internal val schema : String?
+            get() = current.idl
 
         val IDL_PROPERTY = "graphql.idl"
         val IDL_UPDATE_PROPERTY = "graphql.idl.update"
         val DENSE_NODE = 50
+        const val CONFIG_RELATIONSHIPS = "graphql.schema.relationships"
+        const val CONFIG_SAMPLE_NODES = "graphql.sampling.nodes"
+        const val CONFIG_SAMPLE_TIMEOUT = "graphql.sampling.timeout"
+        const val DEFAULT_SAMPLE_NODES = 100
+        const val DEFAULT_SAMPLE_TIMEOUT = 1000
+        // random node ids hit a node of the label on average every highestId / count tries, sparser labels are scanned
+        private const val PROBES_PER_HIT = 20
 
-        @JvmStatic fun from(db: GraphDatabaseService, label: Label): MetaData {
+        /** @param relationshipCounts shared by the labels of one sampling run, read when the first label needs them */
+        @JvmStatic @JvmOverloads fun from(db: GraphDatabaseService, label: Label, progress: SchemaSampler.Progress? = null,
+                                          relationshipCounts: Lazy<RelationshipCounts>? = null): MetaData {
             val metaData = MetaData(label.name())
             inspectIndexes(metaData, db, label)
-            sampleNodes(metaData, db, label)
+            if (db.config(CONFIG_RELATIONSHIPS)?.trim().equals("counts", ignoreCase = true)) {
+                val nodes = sampleNodes(metaData, db, label, false, progress)
+                countRelationships(metaData, label, nodes, (relationshipCounts ?: lazy { RelationshipCounts(db) }).value)
+            } else {
+                sampleNodes(metaData, db, label, true, progress)
+            }
             return metaData
         }
 
@@ -36,14 +60,15 @@ class GraphSchemaScanner {
                     it.setProperty(IDL_UPDATE_PROPERTY, System.currentTimeMillis())
                 }
                 tx.success()
-                return metaDatas
             } finally {
                 tx.close()
-                GraphSchema.reset()
             }
+            // only a committed IDL changes the schema
+            GraphSchema.reset()
+            return metaDatas
         }
 
-        private fun graphProperties(db: GraphDatabaseService): GraphProperties {
+        internal fun graphProperties(db: GraphDatabaseService): GraphProperties {
             val nodeManager = (db as (GraphDatabaseAPI)).dependencyResolver.resolveDependency(EmbeddedProxySPI::class.java)
             val props = nodeManager.newGraphPropertiesProxy()
             return props
@@ -61,7 +86,7 @@ class GraphSchemaScanner {
             } finally {
                 tx.close()
             }
-
+            GraphSchema.reset()
         }
         fun readIdlMetadata(db: GraphDatabaseService) = readIdl(db)?.let { IDLParser.parse(it) }
 
@@ -87,56 +112,168 @@ class GraphSchemaScanner {
             }
         }
 
-        fun databaseSchema(db: GraphDatabaseService) {
-            allTypes.clear()
-            schema = readIdl(db)
-            val idlMetaData = readIdlMetadata(db)
-            if (idlMetaData != null) {
-                allTypes.putAll(idlMetaData)
-            }
-            if (allTypes.isEmpty()) {
-                allTypes.putAll(sampleDataBase(db))
-            }
+        fun databaseSchema(db: GraphDatabaseService, progress: SchemaSampler.Progress? = null): SchemaSnapshot {
+            val idl = readIdl(db)
+            val idlMetaData = idl?.let { IDLParser.parse(it) } ?: emptyMap()
+            if (idlMetaData.isNotEmpty()) markIndexes(idlMetaData.values, db)
+            return publish(if (idlMetaData.isEmpty()) sampleDataBase(db, progress) else idlMetaData, idl)
         }
 
-        fun allTypes(): Map<String, MetaData> = allTypes
-        fun allMetaDatas() = allTypes.values
+        /** replaces the current schema snapshot, readers holding the previous one are not affected */
+        fun publish(types: Map<String, MetaData>, idl: String? = null): SchemaSnapshot {
+            val snapshot = SchemaSnapshot(versions.incrementAndGet(), types, idl)
+            current = snapshot
+            return snapshot
+        }
+
+        @JvmStatic fun snapshot() = current
+
+        fun allTypes(): Map<String, MetaData> = current.types
+        fun allMetaDatas() = current.metaDatas()
 
         fun getMetaData(type: String): MetaData? {
-            return allTypes[type]
+            return current.metaData(type)
         }
 
         private fun inspectIndexes(md: MetaData, db: GraphDatabaseService, label: Label) {
             for (index in db.schema().getIndexes(label)) {
                 for (s in index.propertyKeys) {
                     if (index.isConstraintIndex) md.addIdProperty(s)
-                    md.addIndexedProperty(s)
+                    md.addIndexedProperty(s, index.isConstraintIndex)
                 }
             }
         }
 
-        private fun sampleDataBase(db: GraphDatabaseService): Map<String, MetaData> {
+        // the IDL declares ids and fields, whether they can be looked up by an index is only known to the database
+        private fun markIndexes(metaDatas: Collection<MetaData>, db: GraphDatabaseService) {
             val tx = db.beginTx()
             try {
-                val result = db.allLabels.associate { label -> label.name() to from(db,label) }
+                for (md in metaDatas) {
+                    if (md.isInterface) continue
+                    for (index in db.schema().getIndexes(Label.label(md.type))) {
+                        index.propertyKeys.filter { md.properties.containsKey(it) }.forEach { md.addIndexedProperty(it, index.isConstraintIndex) }
+                    }
+                }
                 tx.success()
-                return result
             } finally {
                 tx.close()
             }
         }
 
-        private fun sampleNodes(md: MetaData, db: GraphDatabaseService, label: Label) {
-            var count = 10
-            val nodes = db.findNodes(label)
-            while (nodes.hasNext() && count-- > 0) {
-                val node = nodes.next()
+        private fun sampleDataBase(db: GraphDatabaseService, progress: SchemaSampler.Progress?): Map<String, MetaData> =
+                (if (progress == null) SchemaSampler(db) else SchemaSampler(db, progress)).sample()
+
+        private fun sampleNodes(md: MetaData, db: GraphDatabaseService, label: Label, relationships: Boolean, progress: SchemaSampler.Progress?): List<Node> {
+            val size = Math.max(1, db.config(CONFIG_SAMPLE_NODES, DEFAULT_SAMPLE_NODES))
+            val deadline = System.currentTimeMillis() + db.config(CONFIG_SAMPLE_TIMEOUT, DEFAULT_SAMPLE_TIMEOUT)
+            val count = GraphCounts(db).nodes(label.name())
+            val highestId = highestNodeId(db)
+            val (sample, complete) = if (count > size && highestId < count * PROBES_PER_HIT) probe(db, label, size, highestId, deadline, progress)
+                                     else reservoir(db, label, size, deadline, progress)
+            // read in store order
+            val sampled = sample.sortedBy { it.id }
+            progress?.nodes?.addAndGet(sampled.size.toLong())
+            for (node in sampled) {
+                md.sampledNodes++
                 for (l in node.labels) md.addLabel(l.name())
-                node.allProperties.forEach { k, v -> md.addProperty(k, v.javaClass) }
-                sampleRelationships(md, node)
+                node.allProperties.forEach { k, v -> md.sampleProperty(k, v.javaClass) }
+                if (relationships) sampleRelationships(md, node)
+            }
+            if (!complete) md.propertyStats.values.forEach { it.truncated = true }
+            return sampled
+        }
+
+        /**
+         * Uniform random sample of the nodes of a label by looking up random node ids, so the nodes found until the time budget
+         * is used up are still spread over the whole store instead of coming from its beginning.
+         * @return the sample and whether it has as many nodes as requested
+         */
+        private fun probe(db: GraphDatabaseService, label: Label, size: Int, highestId: Long, deadline: Long, progress: SchemaSampler.Progress?): Pair<List<Node>, Boolean> {
+            val random = ThreadLocalRandom.current()
+            val tried = HashSet<Long>()
+            val sample = ArrayList<Node>(size)
+            val maxProbes = Math.min(highestId + 1, size.toLong() * PROBES_PER_HIT * 2)
+            while (sample.size < size && tried.size < maxProbes) {
+                val id = random.nextLong(highestId + 1)
+                if (!tried.add(id)) continue
+                if (tried.size % 64 == 0) {
+                    progress?.checkCancelled()
+                    if (System.currentTimeMillis() > deadline) break
+                }
+                val node = try { db.getNodeById(id) } catch (e: NotFoundException) { null }
+                if (node != null && node.hasLabel(label)) sample.add(node)
+            }
+            return sample to (sample.size == size)
+        }
+
+        /**
+         * Uniform random sample of the nodes of a label, reservoir sampling over the label scan.
+         * Only used for labels with few nodes in the store, when the time budget is used up the scan stops and the nodes seen so far are sampled.
+         * @return the sample and whether the scan was finished
+         */
+        private fun reservoir(db: GraphDatabaseService, label: Label, size: Int, deadline: Long, progress: SchemaSampler.Progress?): Pair<List<Node>, Boolean> {
+            val random = ThreadLocalRandom.current()
+            val reservoir = ArrayList<Node>(size)
+            val nodes = db.findNodes(label)
+            try {
+                var seen = 0L
+                while (nodes.hasNext()) {
+                    progress?.checkCancelled()
+                    val node = nodes.next()
+                    if (reservoir.size < size) reservoir.add(node)
+                    else random.nextLong(seen + 1).let { if (it < size) reservoir[it.toInt()] = node }
+                    if (++seen % 1024 == 0L && System.currentTimeMillis() > deadline) break
+                }
+                return reservoir to !nodes.hasNext()
+            } finally {
+                nodes.close()
             }
         }
 
+        private fun highestNodeId(db: GraphDatabaseService) =
+                (db as GraphDatabaseAPI).dependencyResolver.resolveDependency(IdGeneratorFactory::class.java).get(IdType.NODE).highestPossibleIdInUse
+
+        /**
+         * Derives relationship fields from the counts store instead of following relationships of sampled nodes.
+         * A type is a list if there are more relationships than nodes of the label or if one of the sampled nodes has more than one.
+         */
+        private fun countRelationships(md: MetaData, label: Label, sampled: List<Node>, counts: RelationshipCounts) {
+            val name = label.name()
+            val nodeCount = counts.nodes[name] ?: 0L
+            for (typeName in counts.types) {
+                val type = RelationshipType.withName(typeName)
+                val outCount = counts.starts[typeName]?.get(name) ?: 0L
+                if (outCount > 0) {
+                    otherLabel(counts.ends[typeName], sampled, type, Direction.OUTGOING)?.let { end ->
+                        val multi = outCount > nodeCount || sampled.any { it.getDegree(type, Direction.OUTGOING) > 1 }
+                        md.mergeRelationship(typeName, fieldName(typeName, true, name, end), end, true, multi, null, 0)
+                    }
+                }
+                val inCount = counts.ends[typeName]?.get(name) ?: 0L
+                if (inCount > 0) {
+                    otherLabel(counts.starts[typeName], sampled, type, Direction.INCOMING)?.let { start ->
+                        val multi = inCount > nodeCount || sampled.any { it.getDegree(type, Direction.INCOMING) > 1 }
+                        md.mergeRelationship(typeName, fieldName(typeName, false, name, start), start, false, multi, null, 0)
+                    }
+                }
+            }
+        }
+
+        /*
+         * The counts store has no counts for (:A)-[:R]->(:B), so with several labels at the other end of the type the one
+         * the sampled nodes are connected to most is taken, and the most frequent one only if none of them has that relationship.
+         */
+        private fun otherLabel(candidates: Map<String, Long>?, sampled: List<Node>, type: RelationshipType, direction: Direction): String? {
+            if (candidates == null || candidates.isEmpty()) return null
+            if (candidates.size == 1) return candidates.keys.first()
+            val neighbours = HashMap<String, Int>()
+            for (node in sampled) {
+                node.getRelationships(direction, type).asSequence().take(DENSE_NODE).forEach { rel ->
+                    rel.getOtherNode(node).labels.forEach { if (candidates.containsKey(it.name())) neighbours.merge(it.name(), 1, Int::plus) }
+                }
+            }
+            return neighbours.maxBy { it.value }?.key ?: candidates.maxBy { it.value }?.key
+        }
 
         private fun sampleRelationships(md: MetaData, node: Node) {
             val dense = node.degree > DENSE_NODE
@@ -144,17 +281,16 @@ class GraphSchemaScanner {
                 val itOut = node.getRelationships(Direction.OUTGOING, type).iterator()
                 val out = Iterators.firstOrNull(itOut)
                 val typeName = type.name()
-                val fieldName = fieldName(typeName) // todo handle end-label
                 if (out != null) {
                     if (!dense || node.getDegree(type, Direction.OUTGOING) < DENSE_NODE) {
-                        labelsFor(out.endNode) { label -> md.mergeRelationship(typeName, fieldName,label,true,itOut.hasNext(),null,0) }
+                        labelsFor(out.endNode) { label -> md.mergeRelationship(typeName, fieldName(typeName, true, md.type, label),label,true,itOut.hasNext(),null,0) }
                     }
                 }
                 val itIn = node.getRelationships(Direction.INCOMING, type).iterator()
                 val `in` = Iterators.firstOrNull(itIn)
                 if (`in` != null) {
                     if (!dense || node.getDegree(type, Direction.INCOMING) < DENSE_NODE) {
-                        labelsFor(`in`.startNode) { label -> md.mergeRelationship(typeName, fieldName,label,false,itIn.hasNext(),null,0) }
+                        labelsFor(`in`.startNode) { label -> md.mergeRelationship(typeName, fieldName(typeName, false, md.type, label),label,false,itIn.hasNext(),null,0) }
                     }
                 }
             }
@@ -0,0 +1,213 @@
+package org.neo4j.graphql
+
+/**
+ * A `@cypher` statement compiled into an expression of the generated statement, so it doesn't run as nested query per row
+ * through graphql.runMany / runSingle. Only statements of the form `[MATCH (this)... [WHERE ...]] RETURN expression [AS name]`
+ * are compiled, the pattern becomes a pattern comprehension and `count(*)`, `count(x)` or `collect(x)` may be the only aggregation.
+ * Variables of the statement are prefixed so they can't clash with the ones of the generated statement.
+ * [parse] returns `null` for everything else, that is executed by the procedures.
+ */
+class InlineCypher private constructor(private val pattern: List<Token>, private val where: List<Token>, private val expression: List<Token>,
+                                       private val aggregation: String?, val parameters: Set<String>) {
+
+    private enum class Kind { WORD, NAME, PARAM, STRING, NUMBER, SYMBOL, SPACE }
+
+    private data class Token(val kind: Kind, val text: String) {
+        fun isWord(word: String) = kind == Kind.WORD && text.equals(word, ignoreCase = true)
+    }
+
+    /**
+     * writes the expression, `this` refers to variable, other variables are prefixed with prefix
+     * @param params parameter name for an argument of the field
+     * @param many a list of all rows like runMany instead of the first row like runSingle
+     */
+    fun write(out: CypherWriter, variable: String, prefix: String, params: (String) -> String, many: Boolean) {
+        if (pattern.isEmpty()) {
+            if (many) out.append('[')
+            write(out, expression, variable, prefix, params)
+            if (many) out.append(']')
+            return
+        }
+        when (aggregation) {
+            "count" -> {
+                if (many) out.append('[')
+                out.append("size(")
+                comprehension(out, variable, prefix, params) { out.append('1') }
+                out.append(')')
+                if (many) out.append(']')
+            }
+            "collect" -> {
+                if (many) out.append('[')
+                comprehension(out, variable, prefix, params) { write(out, expression, variable, prefix, params) }
+                if (many) out.append(']')
+            }
+            else -> {
+                if (!many) out.append("head(")
+                comprehension(out, variable, prefix, params) { write(out, expression, variable, prefix, params) }
+                if (!many) out.append(')')
+            }
+        }
+    }
+
+    private fun comprehension(out: CypherWriter, variable: String, prefix: String, params: (String) -> String, value: () -> Unit) {
+        out.append("[ ")
+        write(out, pattern, variable, prefix, params)
+        if (where.isNotEmpty()) {
+            out.append(" WHERE ")
+            write(out, where, variable, prefix, params)
+        }
+        out.append(" | ")
+        value()
+        out.append(" ]")
+    }
+
+    private fun write(out: CypherWriter, tokens: List<Token>, variable: String, prefix: String, params: (String) -> String) {
+        tokens.forEachIndexed { i, token ->
+            when {
+                token.kind == Kind.SPACE -> out.append(' ')
+                token.kind == Kind.PARAM -> if (token.text == THIS) out.name(variable) else out.param(params(token.text))
+                isVariable(tokens, i) -> if (token.text == THIS) out.name(variable) else out.name(prefix + "_" + token.text.trim('`'))
+                else -> out.append(token.text)
+            }
+        }
+    }
+
+    companion object {
+        private const val THIS = "this"
+        private val THIS_PREFIX = Regex("^\\s*WITH\\s+(\\{\\s*this\\s*}|\\\$this)\\s+AS\\s+this\\s+", RegexOption.IGNORE_CASE)
+        private val CLAUSES = setOf("MATCH", "OPTIONAL", "WHERE", "RETURN", "WITH", "UNWIND", "CALL", "YIELD", "ORDER", "SKIP", "LIMIT", "UNION",
+                "CREATE", "MERGE", "SET", "DELETE", "DETACH", "REMOVE", "FOREACH", "LOAD", "USING", "DISTINCT")
+        private val KEYWORDS = setOf("AND", "OR", "XOR", "NOT", "IN", "IS", "NULL", "TRUE", "FALSE", "AS", "STARTS", "ENDS", "WITH", "CONTAINS",
+                "CASE", "WHEN", "THEN", "ELSE", "END", "WHERE", "DISTINCT")
+        private val AGGREGATIONS = setOf("count", "collect", "sum", "avg", "min", "max", "stdev", "stdevp", "percentilecont", "percentiledisc")
+
+        /** the compiled statement or `null` if it has to run as nested query */
+        fun parse(statement: String): InlineCypher? {
+            val tokens = tokenize(statement.replaceFirst(THIS_PREFIX, "").trim().removeSuffix(";")) ?: return null
+            // top level clauses have to be [MATCH] [WHERE] RETURN
+            val clauses = ArrayList<Int>()
+            var depth = 0
+            tokens.forEachIndexed { i, token ->
+                if (token.kind == Kind.SYMBOL && (token.text == "(" || token.text == "[")) depth++
+                if (token.kind == Kind.SYMBOL && (token.text == ")" || token.text == "]")) depth--
+                if (depth == 0 && token.kind == Kind.WORD && CLAUSES.contains(token.text.toUpperCase()) && !isOperator(tokens, i)) clauses.add(i)
+                if (depth == 0 && token.kind == Kind.SYMBOL && token.text == ",") return null
+            }
+            val names = clauses.map { tokens[it].text.toUpperCase() }
+            if (names != listOf("RETURN") && names != listOf("MATCH", "RETURN") && names != listOf("MATCH", "WHERE", "RETURN")) return null
+            if (clauses[0] != 0) return null
+            val returnAt = clauses.last()
+            val pattern = if (names[0] == "MATCH") trim(tokens.subList(1, clauses[1])) else emptyList()
+            val where = if (names.size == 3) trim(tokens.subList(clauses[1] + 1, returnAt)) else emptyList()
+            var expression = trim(tokens.subList(returnAt + 1, tokens.size))
+            if (pattern.isNotEmpty() && !startsAtThis(pattern)) return null
+            // the column name is not needed
+            val alias = expression.indexOfLast { it.isWord("AS") }
+            if (alias > 0 && expression.subList(alias + 1, expression.size).count { it.kind != Kind.SPACE } == 1) expression = trim(expression.subList(0, alias))
+            if (expression.isEmpty()) return null
+
+            val aggregation = aggregation(expression)
+            if (aggregation == null && expression.indexedAny { i, t -> t.kind == Kind.WORD && AGGREGATIONS.contains(t.text.toLowerCase()) && isCall(expression, i) }) return null
+            if (aggregation != null && pattern.isEmpty()) return null
+            val value = if (aggregation != null) listOf(aggregation.second) else expression
+            val parameters = tokens.filter { it.kind == Kind.PARAM && it.text != THIS }.map { it.text }.toSet()
+            return InlineCypher(pattern, where, value, aggregation?.first, parameters)
+        }
+
+        // count(*), count(x) or collect(x), the pattern variables are never null so they don't need a filter
+        private fun aggregation(expression: List<Token>): Pair<String, Token>? {
+            val significant = expression.filter { it.kind != Kind.SPACE }
+            if (significant.size != 4 || significant[1].text != "(" || significant[3].text != ")") return null
+            val name = significant[0].text.toLowerCase()
+            val argument = significant[2]
+            if (significant[0].kind != Kind.WORD || (name != "count" && name != "collect")) return null
+            if (name == "count" && argument.text == "*") return name to argument
+            return if (argument.kind == Kind.WORD || argument.kind == Kind.NAME) name to argument else null
+        }
+
+        // STARTS WITH and ENDS WITH are operators, not a WITH clause
+        private fun isOperator(tokens: List<Token>, i: Int): Boolean {
+            val before = tokens.subList(0, i).lastOrNull { it.kind != Kind.SPACE } ?: return false
+            return tokens[i].isWord("WITH") && (before.isWord("STARTS") || before.isWord("ENDS"))
+        }
+
+        // a pattern comprehension needs at least one relationship
+        private fun startsAtThis(pattern: List<Token>): Boolean {
+            val significant = pattern.filter { it.kind != Kind.SPACE }
+            return significant.any { it.kind == Kind.SYMBOL && it.text == "-" } && significant.size > 2 && significant[0].text == "(" && significant[1].kind == Kind.WORD && significant[1].text == THIS
+                    && (significant[2].text == ")" || significant[2].text == ":")
+        }
+
+        private fun trim(tokens: List<Token>) = tokens.dropWhile { it.kind == Kind.SPACE }.dropLastWhile { it.kind == Kind.SPACE }
+
+        private fun isCall(tokens: List<Token>, i: Int) = tokens.subList(i + 1, tokens.size).firstOrNull { it.kind != Kind.SPACE }?.text == "("
+
+        // labels, types, properties and functions are kept, everything else is a variable
+        private fun isVariable(tokens: List<Token>, i: Int): Boolean {
+            val token = tokens[i]
+            if (token.kind != Kind.WORD && token.kind != Kind.NAME) return false
+            if (token.kind == Kind.WORD && KEYWORDS.contains(token.text.toUpperCase())) return false
+            val before = tokens.subList(0, i).lastOrNull { it.kind != Kind.SPACE }?.text
+            return before != "." && before != ":" && !isCall(tokens, i)
+        }
+
+        private inline fun <T> List<T>.indexedAny(predicate: (Int, T) -> Boolean): Boolean {
+            forEachIndexed { i, t -> if (predicate(i, t)) return true }
+            return false
+        }
+
+        // map literals, comments and list comprehensions or alternative types with | are not supported
+        private fun tokenize(text: String): List<Token>? {
+            val tokens = ArrayList<Token>()
+            var i = 0
+            while (i < text.length) {
+                val c = text[i]
+                val start = i
+                when {
+                    c.isWhitespace() -> {
+                        while (i < text.length && text[i].isWhitespace()) i++
+                        tokens.add(Token(Kind.SPACE, " "))
+                    }
+                    c.isLetter() || c == '_' -> {
+                        while (i < text.length && (text[i].isLetterOrDigit() || text[i] == '_')) i++
+                        tokens.add(Token(Kind.WORD, text.substring(start, i)))
+                    }
+                    c.isDigit() -> {
+                        while (i < text.length && (text[i].isDigit() || (text[i] == '.' && i + 1 < text.length && text[i + 1].isDigit()))) i++
+                        tokens.add(Token(Kind.NUMBER, text.substring(start, i)))
+                    }
+                    c == '`' -> {
+                        i = text.indexOf('`', i + 1)
+                        if (i < 0) return null
+                        tokens.add(Token(Kind.NAME, text.substring(start, ++i)))
+                    }
+                    c == '\'' || c == '"' -> {
+                        i++
+                        while (i < text.length && text[i] != c) i += if (text[i] == '\\') 2 else 1
+                        if (i >= text.length) return null
+                        tokens.add(Token(Kind.STRING, text.substring(start, ++i)))
+                    }
+                    c == '{' -> {
+                        val end = text.indexOf('}', i)
+                        val name = if (end < 0) "" else text.substring(i + 1, end).trim()
+                        if (name.isEmpty() || !name.all { it.isLetterOrDigit() || it == '_' }) return null
+                        tokens.add(Token(Kind.PARAM, name))
+                        i = end + 1
+                    }
+                    c == '$' -> {
+                        i++
+                        while (i < text.length && (text[i].isLetterOrDigit() || text[i] == '_')) i++
+                        if (i == start + 1) return null
+                        tokens.add(Token(Kind.PARAM, text.substring(start + 1, i)))
+                    }
+                    c == '|' || c == ';' || c == '}' || (c == '/' && text.startsWith("//", i)) || (c == '/' && text.startsWith("/*", i)) -> return null
+                    else -> {
+                        i++
+                        tokens.add(Token(Kind.SYMBOL, c.toString()))
+                    }
+                }
+            }
+            return tokens
+        }
+    }
+}
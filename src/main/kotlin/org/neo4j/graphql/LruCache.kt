@@ -0,0 +1,39 @@
+package org.neo4j.graphql
+
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Small synchronized LRU map with hit, miss and eviction counters, a maxSize of 0 disables caching.
+ */
+class LruCache<K, V>(@Volatile var maxSize: Int) {
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val evictions = AtomicLong()
+
+    private val entries = object : LinkedHashMap<K, V>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, V>?): Boolean {
+            val evict = size > maxSize
+            if (evict) evictions.incrementAndGet()
+            return evict
+        }
+    }
+
+    fun get(key: K): V? {
+        val value = synchronized(entries) { entries[key] }
+        if (value == null) misses.incrementAndGet() else hits.incrementAndGet()
+        return value
+    }
+
+    fun put(key: K, value: V) {
+        if (maxSize > 0) synchronized(entries) { entries[key] = value }
+    }
+
+    fun clear() = synchronized(entries) { entries.clear() }
+
+    fun stats(): Map<String, Any> = linkedMapOf<String, Any>(
+            "size" to synchronized(entries) { entries.size },
+            "hits" to hits.get(),
+            "misses" to misses.get(),
+            "evictions" to evictions.get())
+}
@@ -274,6 +274,28 @@ class ManagementResource(@Context val provider: LogProvider, @Context val db: Gr
 
     fun asResponse(result: Map<String, Any?>) = Response.ok().entity(formatMap(result)).build()
 
+    @Path("schema/sample")
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    fun sampleSchema() = asResponse(SchemaSampler.start(db).progress.toMap())
+
+    @Path("schema/sample")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    fun sampleSchemaProgress(): Response {
+        val run = SchemaSampler.current() ?: return Response.noContent().build()
+        return asResponse(run.progress.toMap())
+    }
+
+    @Path("schema/sample")
+    @DELETE
+    @Produces(MediaType.APPLICATION_JSON)
+    fun cancelSampleSchema(): Response {
+        val run = SchemaSampler.current() ?: return Response.noContent().build()
+        run.cancel()
+        return asResponse(run.progress.toMap())
+    }
+
     fun executeQuery(params: Map<String, Any>): LinkedHashMap<String, Any?> {
         val result = linkedMapOf<String,Any?>()
         val tx = db.beginTx()
@@ -1,5 +1,6 @@
 package org.neo4j.graphql
 
+import org.neo4j.graphql.util.Operators
 import java.util.*
 
 /**
@@ -18,13 +19,30 @@ class MetaData(label: String) {
     val properties = LinkedHashMap<String, PropertyInfo>()
     @JvmField val relationships: MutableMap<String, RelationshipInfo> = LinkedHashMap()
     val labels = LinkedHashSet<String>()
+    /** per property the types found on sampled nodes, only filled when the schema is derived from the data */
+    val propertyStats = LinkedHashMap<String, PropertyStats>()
+    var sampledNodes = 0
 
     override fun toString(): String {
         return "MetaData{type='$type', properties=$properties, labels=$labels, relationships=$relationships, isInterface=$isInterface}"
     }
 
-    fun addIndexedProperty(name: String) {
-        properties.compute(name, { name, prop -> prop?.copy(indexed = true) ?: PropertyInfo(name, PropertyType("String"),indexed = true) })
+    fun fingerprint() = "$this description=$description"
+
+    fun copy(): MetaData {
+        val copy = MetaData(type)
+        copy.isInterface = isInterface
+        copy.description = description
+        copy.properties.putAll(properties)
+        copy.relationships.putAll(relationships)
+        copy.labels.addAll(labels)
+        propertyStats.forEach { (name, stats) -> copy.propertyStats[name] = stats.copy() }
+        copy.sampledNodes = sampledNodes
+        return copy
+    }
+
+    @JvmOverloads fun addIndexedProperty(name: String, unique: Boolean = false) {
+        properties.compute(name, { name, prop -> prop?.copy(indexed = true, uniqueIndex = unique || prop.uniqueIndex) ?: PropertyInfo(name, PropertyType("String"),indexed = true, uniqueIndex = unique) })
     }
 
     fun addIdProperty(name: String) {
@@ -39,6 +57,13 @@ class MetaData(label: String) {
         properties.compute(name, {name, prop -> prop?.copy(type = PropertyType(javaClass)) ?: PropertyInfo(name,PropertyType(javaClass)) })
     }
 
+    /** records the type of a sampled value, the property gets the type found most often */
+    fun sampleProperty(name: String, javaClass: Class<Any>) {
+        val stats = propertyStats.getOrPut(name) { PropertyStats() }
+        stats.add(PropertyType(javaClass))
+        properties.compute(name, {name, prop -> prop?.copy(type = stats.dominant()) ?: PropertyInfo(name, stats.dominant()) })
+    }
+
     fun addProperty(name: String, type: PropertyType, defaultValue: Any? = null, unique : Boolean = false, enum : Boolean = false, description: String? = null) {
         properties.compute(name, {name, prop -> (prop ?: PropertyInfo(name,type)).copy(type = type, defaultValue = defaultValue, unique = unique, enum = enum, description = description)})
     }
@@ -90,12 +115,31 @@ class MetaData(label: String) {
         }
 
      */
+    class PropertyStats {
+        val types = LinkedHashMap<PropertyType, Int>()
+        /** the sample ran out of time before it had as many nodes as configured */
+        var truncated = false
+        val count: Int
+            get() = types.values.sum()
+        val conflict: Boolean
+            get() = types.size > 1
+
+        fun add(type: PropertyType) { types.merge(type, 1) { a, b -> a + b } }
+        fun dominant() = types.maxBy { it.value }!!.key
+        fun copy() = PropertyStats().also { it.types.putAll(types); it.truncated = truncated }
+        fun frequency(sampledNodes: Int) = if (sampledNodes == 0) 0.0 else count.toDouble() / sampledNodes
+
+        override fun toString() = "PropertyStats{count=$count, types=$types, truncated=$truncated}"
+    }
+
     data class ParameterInfo(val name: String, val type: PropertyType, val defaultValue: Any? = null, val description: String? = null) // todo directives
     data class CypherInfo(val cypher: String, val description: String? = null)
     data class PropertyInfo(val fieldName:String, val type: PropertyType, val id: Boolean = false,
                             val indexed: Boolean = false, val cypher: CypherInfo? = null, val defaultValue : Any? = null,
                             val unique: Boolean = false,val enum : Boolean = false,
-                            val parameters : Map<String,ParameterInfo>? = null, val description : String? = null) {
+                            val parameters : Map<String,ParameterInfo>? = null, val description : String? = null,
+                            /** backed by a uniqueness constraint, only set from the database schema like [indexed] */
+                            val uniqueIndex: Boolean = false) {
         fun isGraphQLId() = type.name == "ID"
         fun isIdProperty() = isGraphQLId() || id
         fun isComputed() = cypher != null
@@ -0,0 +1,69 @@
+package org.neo4j.graphql
+
+import org.neo4j.graphdb.GraphDatabaseService
+import java.security.MessageDigest
+
+/**
+ * Automatic persisted queries: clients register a query once with its SHA-256 hash and afterwards only send the hash.
+ * Registrations are kept in a bounded in-memory cache and as graph properties, so they survive restarts.
+ * At most [maxStored] queries are stored in the graph, later registrations are only cached. Their number is kept in the
+ * graph property [PROPERTY_COUNT], so a registration doesn't have to count the stored queries.
+ */
+object PersistedQueries {
+    const val PROPERTY_PREFIX = "graphql.persisted."
+    const val PROPERTY_COUNT = "graphql.persistedCount"
+    const val CONFIG_SIZE = "graphql.cache.persisted"
+    const val DEFAULT_SIZE = 1000
+    const val CONFIG_STORED = "graphql.persisted.max"
+    const val DEFAULT_STORED = 10000
+    const val NOT_FOUND = "PersistedQueryNotFound"
+
+    private val queries = LruCache<String, String>(DEFAULT_SIZE)
+
+    @Volatile var maxStored = DEFAULT_STORED
+
+    var maxSize: Int
+        get() = queries.maxSize
+        set(value) { queries.maxSize = value }
+
+    fun hash(query: String) = MessageDigest.getInstance("SHA-256").digest(query.toByteArray(Charsets.UTF_8)).joinToString("") { "%02x".format(it) }
+
+    fun matches(hash: String, query: String) = hash.equals(hash(query), ignoreCase = true)
+
+    fun register(db: GraphDatabaseService, hash: String, query: String) {
+        if (!matches(hash, query)) throw IllegalArgumentException("provided sha does not match query")
+        val key = hash.toLowerCase()
+        val tx = db.beginTx()
+        try {
+            GraphSchemaScanner.graphProperties(db).let { props ->
+                if (!props.hasProperty(PROPERTY_PREFIX + key)) {
+                    // stores of older versions have no count yet, they are counted once
+                    val stored = (props.getProperty(PROPERTY_COUNT, null) as Number?)?.toInt() ?: props.propertyKeys.count { it.startsWith(PROPERTY_PREFIX) }
+                    if (stored < maxStored) {
+                        props.setProperty(PROPERTY_PREFIX + key, query)
+                        props.setProperty(PROPERTY_COUNT, stored + 1)
+                    }
+                }
+            }
+            tx.success()
+        } finally {
+            tx.close()
+        }
+        queries.put(key, query)
+    }
+
+    fun lookup(db: GraphDatabaseService, hash: String): String? {
+        val key = hash.toLowerCase()
+        queries.get(key)?.let { return it }
+        val tx = db.beginTx()
+        try {
+            val query = GraphSchemaScanner.graphProperties(db).getProperty(PROPERTY_PREFIX + key, null) as String?
+            tx.success()
+            return query?.also { queries.put(key, it) }
+        } finally {
+            tx.close()
+        }
+    }
+
+    fun stats() = queries.stats()
+}
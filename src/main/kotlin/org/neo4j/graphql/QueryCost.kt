@@ -0,0 +1,77 @@
+package org.neo4j.graphql
+
+import graphql.language.*
+
+/**
+ * Estimates the rows a root field produces on all its nesting levels before it is executed.
+ * The root level starts with the node count of its label, each relationship level multiplies the rows of its parent level
+ * with the average degree of that relationship from the counts store, each level is counted once. Both are capped by `first`. Lookups by node id or
+ * a property with a uniqueness constraint count one node per value, other indexed properties as many nodes per value as the
+ * index statistics say. `@cypher` fields add one nested statement per row.
+ */
+class QueryCost(private val counts: GraphCounts, private val metaDatas: Map<String, MetaData>,
+                private val fragments: Map<String, FragmentDefinition> = emptyMap(), private val params: Map<String, Any> = emptyMap()) {
+
+    fun of(field: Field, md: MetaData): Long {
+        val rows = capped(roots(field, md), field)
+        return Math.ceil(rows + selections(field.selectionSet, md, rows)).toLong()
+    }
+
+    private fun roots(field: Field, md: MetaData): Double {
+        val lookups = field.arguments.mapNotNull { argument ->
+            val value = CypherGenerator.argumentValue(argument.value, params)
+            val name = argument.name
+            when {
+                value == null -> null
+                GraphQLSchemaBuilder.ArgumentProperties.NodeId.matches(name) -> 1.0
+                GraphQLSchemaBuilder.ArgumentProperties.NodeIds.matches(name) -> (value as? Collection<*>)?.size?.toDouble()
+                md.properties.containsKey(name) -> nodesPerValue(md, name)
+                name.endsWith("s") && md.properties.containsKey(name.dropLast(1)) ->
+                    nodesPerValue(md, name.dropLast(1))?.let { perValue -> (value as? Collection<*>)?.size?.let { it * perValue } }
+                else -> null
+            }
+        }
+        return lookups.min() ?: counts.nodes(md.type).toDouble()
+    }
+
+    // an index without statistics may find every node of the label, properties without index are no lookup at all
+    private fun nodesPerValue(md: MetaData, name: String): Double? {
+        val property = md.properties[name] ?: return null
+        return when {
+            property.uniqueIndex -> 1.0
+            property.indexed -> counts.nodesPerValue(md.type, name) ?: counts.nodes(md.type).toDouble()
+            else -> null
+        }
+    }
+
+    private fun selections(selectionSet: SelectionSet?, md: MetaData, rows: Double): Double =
+            selectionSet?.selections?.sumByDouble { selection ->
+                when (selection) {
+                    is Field -> field(selection, md, rows)
+                    is InlineFragment -> metaDatas[selection.typeCondition.name]?.let { selections(selection.selectionSet, it, rows) } ?: 0.0
+                    is FragmentSpread -> fragments[selection.name]?.let { f -> metaDatas[f.typeCondition.name]?.let { selections(f.selectionSet, it, rows) } } ?: 0.0
+                    else -> 0.0
+                }
+            } ?: 0.0
+
+    private fun field(field: Field, md: MetaData, parents: Double): Double {
+        val relationship = md.relationshipFor(field.name) ?: return if (md.cypherFor(field.name) != null) parents else 0.0
+        val perParent = if (relationship.cypher != null) 1.0 else degree(md, relationship)
+        // the parent rows are already counted on their own level
+        val rows = parents * capped(if (relationship.multi) perParent else Math.min(1.0, perParent), field)
+        val target = metaDatas[relationship.label] ?: return rows
+        return rows + selections(field.selectionSet, target, rows)
+    }
+
+    private fun degree(md: MetaData, relationship: MetaData.RelationshipInfo): Double {
+        val nodes = counts.nodes(md.type)
+        if (nodes == 0L) return 0.0
+        val count = if (relationship.out) counts.relationships(md.type, relationship.type, null) else counts.relationships(null, relationship.type, md.type)
+        return count.toDouble() / nodes
+    }
+
+    private fun capped(rows: Double, field: Field): Double {
+        val first = field.arguments.firstOrNull { it.name == "first" }?.let { CypherGenerator.argumentValue(it.value, params) } as? Number
+        return if (first == null) rows else Math.min(rows, first.toDouble())
+    }
+}
@@ -0,0 +1,158 @@
+package org.neo4j.graphql
+
+import org.neo4j.graphdb.Direction
+import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.graphdb.Node
+import org.neo4j.graphdb.event.TransactionData
+import org.neo4j.graphdb.event.TransactionEventHandler
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Watches committed transactions for labels, relationship-types and property-keys that were not part of the
+ * schema at the last build and reports them via the callback, so the schema check on the request path stays a counter read.
+ *
+ * While a schema derived from the data is maintained, the labels, properties and relationships of each commit are
+ * folded into a copy of its MetaData instead, which is published as a new snapshot without rescanning the database.
+ */
+class SchemaChangeHandler(private val onChange: () -> Unit) : TransactionEventHandler.Adapter<SchemaChangeHandler.Facts?>() {
+    private val knownTokens: MutableSet<String> = ConcurrentHashMap.newKeySet()
+    @Volatile private var live: SchemaSnapshot? = null
+
+    /** what a transaction wrote, collected before commit while its nodes can still be read */
+    class Facts {
+        val labels = LinkedHashMap<String, MutableSet<String>>()
+        val properties = LinkedHashMap<String, MutableMap<String, Class<Any>>>()
+        val relationships = LinkedHashMap<RelationshipFact, Boolean>()
+
+        fun isEmpty() = labels.isEmpty() && properties.isEmpty() && relationships.isEmpty()
+    }
+
+    data class RelationshipFact(val label: String, val type: String, val other: String, val out: Boolean)
+
+    fun refresh(db: GraphDatabaseService) {
+        val tx = db.beginTx()
+        try {
+            knownTokens.clear()
+            db.allLabels.forEach { knownTokens.add(label(it.name())) }
+            db.allRelationshipTypes.forEach { knownTokens.add(type(it.name())) }
+            db.allPropertyKeys.forEach { knownTokens.add(property(it)) }
+            tx.success()
+        } finally {
+            tx.close()
+        }
+    }
+
+    /** the snapshot commits are folded into, `null` stops maintaining it until the next full scan */
+    @Synchronized fun maintain(snapshot: SchemaSnapshot?) {
+        live = snapshot
+    }
+
+    fun live() = live
+
+    override fun beforeCommit(data: TransactionData): Facts? {
+        val snapshot = live ?: return null
+        val facts = Facts()
+        // updates of properties the nodes already had add nothing, so most transactions are decided without reading a node
+        val properties = data.assignedNodeProperties().filter { it.previouslyCommitedValue() == null || !snapshot.propertyKeys.contains(it.key()) }
+        if (properties.isEmpty() && data.assignedLabels().none() && data.createdRelationships().none()) return facts
+
+        val nodeLabels = HashMap<Long, List<String>>()
+        fun labels(node: Node) = nodeLabels.getOrPut(node.id) { node.labels.map { it.name() } }
+
+        data.assignedLabels().forEach { entry ->
+            val node = entry.node()
+            val name = entry.label().name()
+            if (data.isDeleted(node)) return@forEach
+            val md = snapshot.metaData(name)
+            val others = labels(node).filter { it != name }
+            if (md != null && md.labels.containsAll(others)) return@forEach
+            val known = facts.labels.containsKey(name) || md != null
+            facts.labels.getOrPut(name) { LinkedHashSet() }.addAll(others)
+            // properties of nodes that were relabeled are not part of the transaction data
+            if (!known) node.allProperties.forEach { k, v -> facts.properties.getOrPut(name) { LinkedHashMap() }.putIfAbsent(k, v.javaClass) }
+        }
+        properties.forEach { entry ->
+            val node = entry.entity()
+            if (data.isDeleted(node)) return@forEach
+            labels(node).forEach { name ->
+                if (snapshot.metaData(name)?.properties?.containsKey(entry.key()) != true) {
+                    facts.properties.getOrPut(name) { LinkedHashMap() }.putIfAbsent(entry.key(), entry.value().javaClass)
+                }
+            }
+        }
+        data.createdRelationships().forEach { rel ->
+            if (data.isDeleted(rel)) return@forEach
+            val typeName = rel.type.name()
+            val start = rel.startNode
+            val end = rel.endNode
+            val endLabels = labels(end)
+            labels(start).forEach { a -> endLabels.forEach { b ->
+                relationship(facts, snapshot, RelationshipFact(a, typeName, b, true)) { start.getDegree(rel.type, Direction.OUTGOING) > 1 }
+                relationship(facts, snapshot, RelationshipFact(b, typeName, a, false)) { end.getDegree(rel.type, Direction.INCOMING) > 1 }
+            } }
+        }
+        return facts
+    }
+
+    override fun afterCommit(data: TransactionData, facts: Facts?) {
+        if (facts != null) {
+            if (!facts.isEmpty() && fold(facts)) onChange.invoke()
+            return
+        }
+        var changed = false
+        data.assignedLabels().forEach { changed = learn(label(it.label().name())) || changed }
+        data.createdRelationships().forEach { changed = learn(type(it.type.name())) || changed }
+        data.assignedNodeProperties().forEach { changed = learn(property(it.key())) || changed }
+        data.assignedRelationshipProperties().forEach { changed = learn(property(it.key())) || changed }
+        if (changed) onChange.invoke()
+    }
+
+    // the degree is only read when the relationship could still become a list
+    private fun relationship(facts: Facts, snapshot: SchemaSnapshot, fact: RelationshipFact, multi: () -> Boolean) {
+        if (facts.relationships[fact] == true) return
+        val known = relationshipInfo(snapshot.metaData(fact.label), fact)
+        if (known != null && !canBecomeMulti(known, fact)) return
+        facts.relationships[fact] = multi()
+    }
+
+    private fun relationshipInfo(md: MetaData?, fact: RelationshipFact): MetaData.RelationshipInfo? {
+        val fieldName = GraphSchemaScanner.fieldName(fact.type, fact.out, fact.label, fact.other)
+        return md?.relationships?.let { it[fieldName] ?: it["_$fieldName"] }
+    }
+
+    // a field is claimed by the first direction seen, like sampling does per node
+    private fun canBecomeMulti(known: MetaData.RelationshipInfo, fact: RelationshipFact) = !known.multi && known.type == fact.type && known.out == fact.out
+
+    /** copy-on-write: only the MetaData of changed types is copied, readers of the previous snapshot are not affected */
+    @Synchronized private fun fold(facts: Facts): Boolean {
+        val snapshot = live ?: return false
+        val copies = LinkedHashMap<String, MetaData>()
+        fun copy(name: String) = copies.getOrPut(name) { snapshot.metaData(name)?.copy() ?: MetaData(name) }
+        fun current(name: String) = copies[name] ?: snapshot.metaData(name)
+
+        facts.labels.forEach { (name, others) ->
+            val md = current(name)
+            if (md == null || !md.labels.containsAll(others)) copy(name).let { copy -> others.forEach { copy.addLabel(it) } }
+        }
+        facts.properties.forEach { (name, properties) ->
+            properties.forEach { (key, javaClass) ->
+                if (current(name)?.properties?.containsKey(key) != true) copy(name).sampleProperty(key, javaClass)
+            }
+        }
+        facts.relationships.forEach { (fact, multi) ->
+            val known = relationshipInfo(current(fact.label), fact)
+            if (known == null || (multi && canBecomeMulti(known, fact))) {
+                copy(fact.label).mergeRelationship(fact.type, GraphSchemaScanner.fieldName(fact.type, fact.out, fact.label, fact.other), known?.label ?: fact.other, fact.out, multi, known?.description, known?.nonNull ?: 0)
+            }
+        }
+        if (copies.isEmpty()) return false
+        live = GraphSchemaScanner.publish(snapshot.types + copies)
+        return true
+    }
+
+    private fun learn(token: String) = knownTokens.add(token)
+
+    private fun label(name: String) = "L:$name"
+    private fun type(name: String) = "T:$name"
+    private fun property(name: String) = "P:$name"
+}
@@ -0,0 +1,126 @@
+package org.neo4j.graphql
+
+import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.graphdb.Label
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Samples all labels of the database in parallel, each label in its own read transaction.
+ * The result is ordered like db.allLabels, independent of which task finishes first.
+ */
+class SchemaSampler(val db: GraphDatabaseService, val progress: Progress = Progress()) {
+
+    /** counters of a sampling run, cancelling it stops the label tasks at their next node */
+    class Progress {
+        val labels = AtomicInteger()
+        val labelsDone = AtomicInteger()
+        val nodes = AtomicLong()
+        val started = System.currentTimeMillis()
+        @Volatile var finished = 0L
+        @Volatile var cancelled = false
+        @Volatile var error: String? = null
+
+        fun elapsed() = (if (finished > 0) finished else System.currentTimeMillis()) - started
+
+        fun state() = when {
+            finished == 0L -> "running"
+            cancelled -> "cancelled"
+            error != null -> "failed"
+            else -> "done"
+        }
+
+        fun checkCancelled() {
+            if (cancelled) throw CancellationException("Schema sampling was cancelled")
+        }
+
+        fun toMap() = linkedMapOf<String, Any?>("state" to state(), "labels" to labels.get(), "labelsDone" to labelsDone.get(),
+                "nodes" to nodes.get(), "elapsed" to elapsed(), "error" to error)
+    }
+
+    /** a sampling run in the background that publishes its result and builds the GraphQL schema from it */
+    class Run(val db: GraphDatabaseService) {
+        val progress = Progress()
+        private val done = CountDownLatch(1)
+
+        internal fun execute() {
+            try {
+                GraphSchema.warm(db, GraphSchemaScanner.databaseSchema(db, progress))
+            } catch (e: CancellationException) {
+                progress.cancelled = true
+            } catch (e: Exception) {
+                progress.error = e.message ?: e.javaClass.name
+            } finally {
+                progress.finished = System.currentTimeMillis()
+                done.countDown()
+            }
+        }
+
+        fun isDone() = done.count == 0L
+
+        /** @return true if the run finished within the timeout */
+        fun await(timeout: Long, unit: TimeUnit) = done.await(timeout, unit)
+
+        fun cancel() {
+            progress.cancelled = true
+        }
+    }
+
+    fun sample(): Map<String, MetaData> {
+        val labels = labels()
+        progress.labels.set(labels.size)
+        val relationshipCounts = lazy { RelationshipCounts(db) }
+        val tasks = labels.map { label -> pool.submit(Callable { sampleLabel(label, relationshipCounts) }) }
+        try {
+            return labels.zip(tasks).associateTo(LinkedHashMap<String, MetaData>()) { (label, task) -> label.name() to task.get() }
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        } finally {
+            tasks.forEach { it.cancel(true) }
+        }
+    }
+
+    private fun labels(): List<Label> {
+        val tx = db.beginTx()
+        try {
+            val labels = db.allLabels.toList()
+            tx.success()
+            return labels
+        } finally {
+            tx.close()
+        }
+    }
+
+    private fun sampleLabel(label: Label, relationshipCounts: Lazy<RelationshipCounts>): MetaData {
+        progress.checkCancelled()
+        val tx = db.beginTx()
+        try {
+            val metaData = GraphSchemaScanner.from(db, label, progress, relationshipCounts)
+            tx.success()
+            progress.labelsDone.incrementAndGet()
+            return metaData
+        } finally {
+            tx.close()
+        }
+    }
+
+    companion object {
+        val PARALLELISM = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()))
+        private val pool by lazy { ForkJoinPool(PARALLELISM) }
+        // waits for the label tasks, so it must not run on the pool itself
+        private val background = Executors.newSingleThreadExecutor { r -> Thread(r, "graphql-schema-sampling").apply { isDaemon = true } }
+        @Volatile private var current: Run? = null
+
+        /** starts sampling in the background, or returns the run that is still in progress */
+        @Synchronized @JvmStatic fun start(db: GraphDatabaseService): Run {
+            current?.let { if (!it.isDone()) return it }
+            val run = Run(db)
+            current = run
+            background.submit(Runnable { run.execute() })
+            return run
+        }
+
+        @JvmStatic fun current() = current
+    }
+}
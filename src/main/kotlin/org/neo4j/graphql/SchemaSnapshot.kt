@@ -0,0 +1,22 @@
+package org.neo4j.graphql
+
+import java.util.*
+
+/**
+ * Immutable, versioned view of the MetaData the schema was built from.
+ * A rebuild publishes a new snapshot, queries keep working on the one their GraphQL instance was built with.
+ */
+class SchemaSnapshot(val version: Long, types: Map<String, MetaData>, val idl: String? = null) {
+    val types: Map<String, MetaData> = Collections.unmodifiableMap(LinkedHashMap(types))
+    /** property keys of all types */
+    val propertyKeys: Set<String> by lazy { this.types.values.flatMapTo(HashSet()) { it.properties.keys } }
+
+    fun metaData(type: String) = types[type]
+    fun metaDatas(): Collection<MetaData> = types.values
+
+    override fun toString() = "SchemaSnapshot{version=$version, types=${types.keys}}"
+
+    companion object {
+        @JvmField val EMPTY = SchemaSnapshot(0, emptyMap())
+    }
+}
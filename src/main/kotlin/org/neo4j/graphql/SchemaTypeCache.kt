@@ -0,0 +1,41 @@
+package org.neo4j.graphql
+
+import graphql.schema.*
+
+/**
+ * Generated types and fields of a previous schema build, reused by the next build for types whose MetaData
+ * (and everything they reference) did not change.
+ */
+class SchemaTypeCache(val definitionsKey: String,
+                      val fieldNamesKey: String,
+                      val definitionEnums: Map<String, GraphQLEnumType>,
+                      val scalars: Map<String, GraphQLScalarType>,
+                      val definitionInputTypes: Map<String, GraphQLInputObjectType>,
+                      val fingerprints: Map<String, String>,
+                      val objectTypes: Map<String, GraphQLObjectType>,
+                      val orderings: Map<String, GraphQLEnumType>,
+                      val filterTypes: Map<String, GraphQLInputObjectType>,
+                      val queryFields: Map<String, GraphQLFieldDefinition>,
+                      val mutationFields: Map<String, List<GraphQLFieldDefinition>>,
+                      val relationshipMutationFields: Map<String, List<GraphQLFieldDefinition>>,
+                      val owners: Map<String, GraphQLSchemaBuilder.FieldOwner>,
+                      val reused: Int = 0) {
+
+    /*
+     * graphql-java resolves type references in place, so a reused type points to the concrete instances of the
+     * build that created it. It can only be reused if everything it (transitively) references is reused as well.
+     * Interfaces carry a type-resolver bound to their builder and are always rebuilt, as are their implementations.
+     */
+    fun reusableTypes(metaDatas: Collection<MetaData>): Set<String> {
+        val types = metaDatas.map { it.type }.toSet()
+        val interfaces = metaDatas.filter { it.isInterface }.map { it.type }.toSet()
+        val changed = metaDatas.filter { md -> md.isInterface || md.labels.any { interfaces.contains(it) } || fingerprints[md.type] != md.fingerprint() }
+                .map { it.type }.toMutableSet()
+        do {
+            val before = changed.size
+            metaDatas.filter { md -> !changed.contains(md.type) && md.relationships.values.any { changed.contains(it.label) || !types.contains(it.label) } }
+                    .forEach { changed.add(it.type) }
+        } while (changed.size != before)
+        return types - changed
+    }
+}
@@ -0,0 +1,153 @@
+package org.neo4j.graphql
+
+import graphql.language.*
+import java.util.*
+
+/**
+ * Caches generated statements per operation shape: the field AST with literal values masked, the fragments,
+ * the shape of the variables it uses and the schema version. A hit only re-binds the literal parameters.
+ */
+class StatementCache(maxSize: Int = DEFAULT_SIZE) {
+    private class Template(val statement: String, val literals: Map<String, Int>, val strategy: String?)
+
+    private val statements = LruCache<String, Template>(maxSize)
+
+    var maxSize: Int
+        get() = statements.maxSize
+        set(value) { statements.maxSize = value }
+
+    fun statement(version: Long, field: Field, fragments: Map<String, FragmentDefinition>, params: Map<String, Any?>, generate: () -> CypherQuery) =
+            statement(version, listOf(field), fragments, params, generate)
+
+    /** statement combining several root fields, cached by the shape of all of them */
+    fun statement(version: Long, fields: List<Field>, fragments: Map<String, FragmentDefinition>, params: Map<String, Any?>, generate: () -> CypherQuery): CypherQuery {
+        val shape = OperationShape(fields, fragments, params)
+        val key = "$version\n${shape.key}"
+        val cached = statements.get(key)
+        if (cached != null) {
+            return CypherQuery(cached.statement, cached.literals.mapValues { (_, ordinal) -> CypherGenerator.argumentValue(shape.literal(ordinal), params) }, strategy = cached.strategy)
+        }
+        val query = generate()
+        val literals = query.sources.mapValues { (_, value) -> shape.ordinal(value) }
+        if (literals.keys == query.params.keys && literals.values.all { it >= 0 }) {
+            statements.put(key, Template(query.query, literals, query.strategy))
+        }
+        return query
+    }
+
+    fun stats() = statements.stats()
+
+    fun clear() = statements.clear()
+
+    companion object {
+        const val DEFAULT_SIZE = 1000
+        const val CONFIG_SIZE = "graphql.cache.statements"
+    }
+}
+
+/**
+ * Prints everything of a field that the generated statement depends on. Literal argument values are masked and
+ * collected in order, variables are described by the structure of their values, orderBy values are kept.
+ */
+class OperationShape(fields: List<Field>, fragments: Map<String, FragmentDefinition>, private val params: Map<String, Any?>) {
+    private val literals = ArrayList<Value<*>>()
+    private val variables = TreeMap<String, Boolean>()
+    val key: String
+
+    init {
+        val out = StringBuilder()
+        fields.forEach { printField(it, out); out.append('\n') }
+        fragments.toSortedMap().values.forEach {
+            out.append("\nfragment ").append(it.name).append(" on ").append(it.typeCondition.name)
+            printSelections(it.selectionSet, out)
+        }
+        variables.forEach { (name, keepValue) ->
+            out.append("\n$").append(name).append('=')
+            if (params.containsKey(name)) printVariable(params[name], keepValue, out) else out.append("absent")
+        }
+        key = out.toString()
+    }
+
+    fun literal(ordinal: Int) = literals[ordinal]
+
+    fun ordinal(value: Value<*>) = literals.indexOfFirst { it === value }
+
+    private fun printField(field: Field, out: StringBuilder) {
+        out.append(field.alias ?: "").append(':').append(field.name)
+        if (field.arguments.isNotEmpty()) {
+            out.append('(')
+            field.arguments.forEach {
+                literals.add(it.value)
+                out.append(it.name).append(':')
+                printValue(it.value, it.name == "orderBy", out)
+                out.append(',')
+            }
+            out.append(')')
+        }
+        field.directives.forEach { directive ->
+            out.append('@').append(directive.name)
+            directive.arguments.forEach { out.append(' ').append(it.name).append(':').append(AstPrinter.printAst(it.value)) }
+        }
+        printSelections(field.selectionSet, out)
+    }
+
+    private fun printSelections(selectionSet: SelectionSet?, out: StringBuilder) {
+        if (selectionSet == null) return
+        out.append('{')
+        selectionSet.selections.forEach {
+            when (it) {
+                is Field -> printField(it, out)
+                is InlineFragment -> { out.append("... on ").append(it.typeCondition?.name); printSelections(it.selectionSet, out) }
+                is FragmentSpread -> out.append("...").append(it.name)
+            }
+            out.append(' ')
+        }
+        out.append('}')
+    }
+
+    private fun printValue(v: Value<*>, keepValue: Boolean, out: StringBuilder) {
+        when (v) {
+            is VariableReference -> {
+                variables[v.name] = keepValue || variables[v.name] == true
+                out.append('$').append(v.name)
+            }
+            is NullValue -> out.append("null")
+            is EnumValue -> out.append(if (keepValue) v.name else "?")
+            is ObjectValue -> {
+                out.append('{')
+                v.objectFields.forEach { out.append(it.name).append(':'); printValue(it.value, keepValue, out); out.append(',') }
+                out.append('}')
+            }
+            is ArrayValue ->
+                if (!keepValue && v.values.all { isScalar(it) }) out.append("[?]")
+                else {
+                    out.append('[')
+                    v.values.forEach { printValue(it, keepValue, out); out.append(',') }
+                    out.append(']')
+                }
+            else -> out.append('?')
+        }
+    }
+
+    private fun isScalar(value: Value<*>) = value !is ObjectValue && value !is ArrayValue && value !is VariableReference && value !is NullValue
+
+    private fun printVariable(value: Any?, keepValue: Boolean, out: StringBuilder) {
+        when {
+            value == null -> out.append("null")
+            keepValue -> out.append(value)
+            value is Map<*, *> -> {
+                out.append('{')
+                value.forEach { (k, v) -> out.append(k).append(':'); printVariable(v, false, out); out.append(',') }
+                out.append('}')
+            }
+            value is Iterable<*> ->
+                if (value.all { it != null && it !is Map<*, *> && it !is Iterable<*> }) out.append("[?]")
+                else {
+                    out.append('[')
+                    value.forEach { printVariable(it, false, out); out.append(',') }
+                    out.append(']')
+                }
+            else -> out.append('?')
+        }
+    }
+}
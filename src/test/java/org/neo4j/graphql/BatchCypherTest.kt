@@ -0,0 +1,79 @@
+package org.neo4j.graphql
+
+import graphql.GraphQL
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.kernel.impl.proc.Procedures
+import org.neo4j.kernel.internal.GraphDatabaseAPI
+import org.neo4j.test.TestGraphDatabaseFactory
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class BatchCypherTest {
+    private var db: GraphDatabaseService? = null
+    private var graphQL: GraphQL? = null
+
+    @Before
+    @Throws(Exception::class)
+    fun setUp() {
+        db = TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(GraphQLSchemaBuilder.CONFIG_BATCH_CYPHER, "true").newGraphDatabase()
+        val procedures = (db as GraphDatabaseAPI).dependencyResolver.resolveDependency(Procedures::class.java)
+        procedures.registerFunction(GraphQLProcedure::class.java)
+        procedures.registerProcedure(GraphQLProcedure::class.java)
+        db!!.execute("CREATE (:Person {name:'Joe'})-[:OWNS]->(:Item {value:3}), (:Person {name:'Jane'})-[:OWNS]->(:Item {value:5}), (:Person {name:'Jim'})").close()
+        GraphSchemaScanner.storeIdl(db!!, """
+        type Person {
+            name: String
+            items: Int @cypher(statement: "MATCH (this)-[:OWNS]->(i) UNWIND [i.value] AS v RETURN count(v)")
+            total: Int @cypher(statement: "MATCH (this)-[:OWNS]->(i) UNWIND [i.value] AS v RETURN sum(v)")
+            highest: Int @cypher(statement: "MATCH (this)-[:OWNS]->(i) UNWIND [i.value] AS v RETURN max(v)")
+        }
+        """)
+        graphQL = GraphSchema.getGraphQL(db!!)
+    }
+
+    @After
+    @Throws(Exception::class)
+    fun tearDown() {
+        db?.shutdown()
+    }
+
+    @Test
+    fun parseOnlySingleRecognisedAggregationOrNone() {
+        assertNotNull(BatchCypher.parse("MATCH (this)-->(m) RETURN count(m)"))
+        assertNotNull(BatchCypher.parse("MATCH (this)-->(m) RETURN collect(DISTINCT m.name) AS names"))
+        assertNotNull(BatchCypher.parse("MATCH (this)-->(m) RETURN m.name"))
+        assertNotNull(BatchCypher.parse("MATCH (this)-->(m) WHERE m.name = 'max(' RETURN m.name"))
+        assertNull(BatchCypher.parse("MATCH (this)-->(m) RETURN max(m.value)"))
+        assertNull(BatchCypher.parse("MATCH (this)-->(m) RETURN count(m) + 1"))
+        assertNull(BatchCypher.parse("MATCH (this)-->(m) RETURN count(m) + sum(m.value)"))
+        assertNull(BatchCypher.parse("MATCH (this)-->(m) RETURN collect(m)[0]"))
+        assertNull(BatchCypher.parse("MATCH (this)-->(m) RETURN m.name, m.value"))
+    }
+
+    @Test
+    fun parseIgnoresKeywordsInStringsAndComments() {
+        assertEquals(0L, BatchCypher.parse("MATCH (this)-->(m) WHERE m.name <> 'RETURN x, WITH y' RETURN count(m)")?.empty)
+        assertNotNull(BatchCypher.parse("MATCH (this)-->(m) WHERE m.name = \"WITH \\\" UNION\" RETURN m.name"))
+        assertNotNull(BatchCypher.parse("MATCH (this)-->(m) // WITH m LIMIT 1\nRETURN m.name"))
+        assertNotNull(BatchCypher.parse("MATCH (this)-->(m) /* RETURN m\nWITH m */ RETURN collect(m.name) AS `WITH`"))
+        assertNotNull(BatchCypher.parse("MATCH (this)-->(`RETURN`) RETURN `RETURN`.name"))
+        assertNull(BatchCypher.parse("MATCH (this)-->(m) WITH m RETURN 'RETURN'"))
+        assertNull(BatchCypher.parse("MATCH (this)-->(m) RETURN m.name // , m.value\nLIMIT 1"))
+        assertNull(BatchCypher.parse("MATCH (this)-->(m) RETURN count(m) /* unterminated"))
+        assertNull(BatchCypher.parse("MATCH (this)-->(m) WHERE m.name = 'RETURN RETURN count(m)"))
+    }
+
+    // the statements are not inlined because of the UNWIND, max runs per node
+    @Test
+    fun parentWithoutMatchGetsEmptyValue() {
+        val result = graphQL!!.execute("{ Person(orderBy: [name_asc]) { name items total highest } }", GraphQLContext(db!!), emptyMap<String, Any>())
+        assertEquals(emptyList(), result.errors)
+        val people = result.getData<Map<String, List<Map<String, Any?>>>>()["Person"]!!.associateBy { it["name"] }
+        assertEquals(mapOf("name" to "Jim", "items" to 0, "total" to 0, "highest" to null), people["Jim"])
+        assertEquals(mapOf("name" to "Joe", "items" to 1, "total" to 3, "highest" to 3), people["Joe"])
+    }
+}
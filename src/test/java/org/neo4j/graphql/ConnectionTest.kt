@@ -0,0 +1,92 @@
+package org.neo4j.graphql
+
+import graphql.GraphQL
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.neo4j.graphdb.GraphDatabaseService
+import org.neo4j.kernel.impl.proc.Procedures
+import org.neo4j.kernel.internal.GraphDatabaseAPI
+import org.neo4j.test.TestGraphDatabaseFactory
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class ConnectionTest {
+    private var db: GraphDatabaseService? = null
+    private var graphQL: GraphQL? = null
+
+    @Before
+    @Throws(Exception::class)
+    fun setUp() {
+        db = TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(GraphQLSchemaBuilder.CONFIG_CONNECTIONS, "true").newGraphDatabase()
+        (db as GraphDatabaseAPI).dependencyResolver.resolveDependency(Procedures::class.java).registerFunction(GraphQLProcedure::class.java)
+        db!!.execute("UNWIND range(1,7) AS age CREATE (:Person {name:'Person '+age, age:age})").close()
+        db!!.execute("CREATE (:Person {name:'Unknown'})").close()
+        GraphSchemaScanner.storeIdl(db!!, "type Person { name: String, age: Int }")
+        graphQL = GraphSchema.getGraphQL(db!!)
+    }
+
+    @After
+    @Throws(Exception::class)
+    fun tearDown() {
+        db?.shutdown()
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun page(arguments: String): Map<String, Any?> {
+        val query = "{ PersonConnection($arguments) { edges { cursor node { age } } pageInfo { hasNextPage hasPreviousPage startCursor endCursor } } }"
+        val result = graphQL!!.execute(query, GraphQLContext(db!!), emptyMap<String, Any>())
+        assertEquals(emptyList(), result.errors)
+        return result.getData<Map<String, Any>>()["PersonConnection"] as Map<String, Any?>
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun ages(page: Map<String, Any?>) = (page["edges"] as List<Map<String, Map<String, Any>>>).map { (it["node"]!!["age"] as Number).toInt() }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun info(page: Map<String, Any?>) = page["pageInfo"] as Map<String, Any?>
+
+    @Test
+    fun pageForwardAndBackward() {
+        val first = page("orderBy: [age_asc], first: 3")
+        assertEquals(listOf(1, 2, 3), ages(first))
+        assertEquals(true, info(first)["hasNextPage"])
+        assertEquals(false, info(first)["hasPreviousPage"])
+
+        val second = page("orderBy: [age_asc], first: 3, after: \"${info(first)["endCursor"]}\"")
+        assertEquals(listOf(4, 5, 6), ages(second))
+
+        val third = page("orderBy: [age_asc], first: 3, after: \"${info(second)["endCursor"]}\"")
+        assertEquals(listOf(7), ages(third))
+        assertEquals(false, info(third)["hasNextPage"])
+
+        val previous = page("orderBy: [age_asc], last: 2, before: \"${info(second)["startCursor"]}\"")
+        assertEquals(listOf(2, 3), ages(previous))
+        assertEquals(true, info(previous)["hasPreviousPage"])
+        assertEquals(true, info(previous)["hasNextPage"])
+    }
+
+    @Test
+    fun pageDescending() {
+        val first = page("orderBy: [age_desc], first: 4")
+        assertEquals(listOf(7, 6, 5, 4), ages(first))
+        assertEquals(listOf(3, 2, 1), ages(page("orderBy: [age_desc], first: 4, after: \"${info(first)["endCursor"]}\"")))
+    }
+
+    @Test
+    fun rejectOrderByMoreThanOneProperty() {
+        val query = "{ PersonConnection(orderBy: [age_asc, name_asc], first: 3) { edges { node { age } } } }"
+        val result = graphQL!!.execute(query, GraphQLContext(db!!), emptyMap<String, Any>())
+        assertEquals(1, result.errors.size)
+        assertTrue(result.errors[0].message.contains("only be ordered by one property"))
+    }
+
+    @Test
+    fun pageByNodeId() {
+        val first = page("first: 5")
+        assertEquals(5, ages(first).size)
+        val rest = page("first: 5, after: \"${info(first)["endCursor"]}\"")
+        assertEquals(3, (rest["edges"] as List<*>).size)
+        assertEquals(false, info(rest)["hasNextPage"])
+    }
+}
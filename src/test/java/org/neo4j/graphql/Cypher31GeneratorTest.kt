@@ -17,13 +17,13 @@ class Cypher31GeneratorTest {
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
         val field = Field("Person", SelectionSet(listOf<Selection<*>>(Field("name"))))
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         assertEquals(
 """MATCH (`person`:`Person`)
@@ -49,13 +49,13 @@ RETURN graphql.labels(`person`) AS `_labels`,
         val metaData = IDLParser.parse(schema)
         val queryType = IDLParser.parseSchemaType(schema,"query").first()
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
         val field = Field("people", SelectionSet(listOf<Selection<*>>(Field("name"))))
 
-        val query = generator.generateQueryForField(field, queryType)
+        val query = generator.generateQueryForField(field, queryType).query
 
         assertEquals(
                 """CALL graphql.queryForNodes("MATCH (p:Person) RETURN p",{}) YIELD node AS `person`
@@ -74,13 +74,13 @@ RETURN graphql.labels(`person`) AS `_labels`,
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
         val field = Field("Person", SelectionSet(listOf<Selection<*>>(Field("name"))))
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         assertEquals(
 """MATCH (`person`:`Person`)
@@ -98,20 +98,21 @@ RETURN graphql.labels(`person`) AS `_labels`,
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
         val name = Field("name" )
         val field = Field("Person", listOf(Argument("name", StringValue("Michael Hunger"))), SelectionSet(listOf<Selection<*>>(name)))
 
-        val query = generator.generateQueryForField(field)
+        val (query, params) = generator.generateQueryForField(field)
 
         assertEquals(
                 """MATCH (`person`:`Person`)
-WHERE `person`.`name` = "Michael Hunger"
+WHERE `person`.`name` = {`person_name`}
 RETURN graphql.labels(`person`) AS `_labels`,
 `person`.`name` AS `name`""",  query)
+        assertEquals(mapOf("person_name" to "Michael Hunger"), params)
     }
 
     @Test
@@ -124,14 +125,14 @@ RETURN graphql.labels(`person`) AS `_labels`,
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
         val name = Field("name" )
         val field = Field("Person", listOf(Argument("orderBy", EnumValue("name_asc"))), SelectionSet(listOf<Selection<*>>(name)))
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         assertEquals(
                 """MATCH (`person`:`Person`)
@@ -150,14 +151,14 @@ ORDER BY `name` asc""",  query)
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
         val name = Field("name" )
         val field = Field("Person", listOf(Argument("orderBy", EnumValue("born_desc"))), SelectionSet(listOf<Selection<*>>(name)))
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         assertEquals(
                 """MATCH (`person`:`Person`)
@@ -177,7 +178,7 @@ ORDER BY `person`.`born` desc""",  query)
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -188,12 +189,13 @@ ORDER BY `person`.`born` desc""",  query)
 
         val field = Field("Person", arguments, selectionSet)
 
-        val query = generator.generateQueryForField(field)
+        val (query, params) = generator.generateQueryForField(field)
 
+        assertEquals(mapOf("person_names" to listOf("Michael Hunger","Will Lyon"), "person_born" to 1960L), params)
         assertEquals(
                 """MATCH (`person`:`Person`)
-WHERE `person`.`name` IN ["Michael Hunger","Will Lyon"]
-AND `person`.`born` = 1960
+WHERE `person`.`name` IN {`person_names`}
+AND `person`.`born` = {`person_born`}
 RETURN graphql.labels(`person`) AS `_labels`,
 `person`.`name` AS `name`,
 `person`.`born` AS `born`""",  query)
@@ -214,7 +216,7 @@ RETURN graphql.labels(`person`) AS `_labels`,
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -222,7 +224,7 @@ RETURN graphql.labels(`person`) AS `_labels`,
 
         val field = Field("Person", selectionSet)
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         assertEquals(
                 """MATCH (`person`:`Person`)
@@ -245,7 +247,7 @@ RETURN graphql.labels(`person`) AS `_labels`,
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -253,7 +255,7 @@ RETURN graphql.labels(`person`) AS `_labels`,
 
         val field = Field("Actor", selectionSet)
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         assertEquals(
                 """MATCH (`actor`:`Actor`)
@@ -261,6 +263,156 @@ RETURN graphql.labels(`actor`) AS `_labels`,
 `actor`.`name` AS `name`,
 `actor`.`numberOfOscars` AS `numberOfOscars`""",  query)
     }
+    @Test
+    fun matchRelationshipOrderByFirst() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+            movies: [Movie] @relation(name: "ACTED_IN")
+        }
+
+        type Movie {
+            title: String
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val movies = Field("movies", listOf(Argument("orderBy", EnumValue("title_asc")), Argument("first", IntValue(BigInteger.valueOf(2)))), SelectionSet(listOf<Selection<*>>(Field("title"))))
+        val field = Field("Person", SelectionSet(listOf<Selection<*>>(Field("name"), movies)))
+
+        val query = Cypher31Generator().generateQueryForField(field)
+
+        assertEquals(
+                """MATCH (`person`:`Person`)
+RETURN graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`,
+graphql.sortColl([ (`person`)-[:`ACTED_IN`]->(`person_movies`:`Movie`)  | `person_movies` {`_labels` : graphql.labels(`person_movies`), .`title`}],['^title'],{`person_movies_first`},0) AS `movies`""",  query.query)
+        assertEquals(mapOf("person_movies_first" to 2L), query.params)
+    }
+
+    @Test
+    fun matchRelationshipSliceBeforeProjection() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+            movies: [Movie] @relation(name: "ACTED_IN")
+        }
+
+        type Movie {
+            title: String
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val movies = Field("movies", listOf(Argument("first", IntValue(BigInteger.valueOf(2))), Argument("offset", IntValue(BigInteger.valueOf(1)))), SelectionSet(listOf<Selection<*>>(Field("title"))))
+        val field = Field("Person", SelectionSet(listOf<Selection<*>>(Field("name"), movies)))
+
+        val query = Cypher31Generator().generateQueryForField(field)
+
+        assertEquals(
+                """MATCH (`person`:`Person`)
+RETURN graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`,
+[ `person_movies` IN [ (`person`)-[:`ACTED_IN`]->(`person_movies`:`Movie`)  | `person_movies`][{`person_movies_offset`}..{`person_movies_offset`}+{`person_movies_first`}] | `person_movies` {`_labels` : graphql.labels(`person_movies`), .`title`}] AS `movies`""",  query.query)
+        assertEquals(mapOf("person_movies_first" to 2L, "person_movies_offset" to 1L), query.params)
+    }
+
+    @Test
+    fun matchIndexedPropertiesFirst() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+            born: Int
+            email: String
+        }
+        """)
+        metaData["Person"]!!.addIndexedProperty("born")
+        metaData["Person"]!!.addIndexedProperty("email", true)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val arguments = listOf(Argument("name", StringValue("Joe")), Argument("born", IntValue(BigInteger.valueOf(1960))), Argument("email", StringValue("joe@example.com")))
+        val field = Field("Person", arguments, SelectionSet(listOf<Selection<*>>(Field("name"))))
+
+        val query = Cypher31Generator(indexHints = true).generateQueryForField(field)
+
+        assertEquals(
+                """MATCH (`person`:`Person` {`email`:{`person_email`}})
+USING INDEX `person`:`Person`(`email`)
+WHERE `person`.`born` = {`person_born`}
+AND `person`.`name` = {`person_name`}
+RETURN graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`""", query.query)
+        assertEquals("index Person(email) hint", query.strategy)
+        assertEquals(mapOf("person_email" to "joe@example.com", "person_born" to 1960L, "person_name" to "Joe"), query.params)
+    }
+
+    @Test
+    fun nonNullFieldWithoutIndexIsNoAnchor() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String!
+            born: Int
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val field = Field("Person", listOf(Argument("born", IntValue(BigInteger.valueOf(1960))), Argument("name", StringValue("Joe"))), SelectionSet(listOf<Selection<*>>(Field("name"))))
+        val query = Cypher31Generator(indexHints = true).generateQueryForField(field)
+
+        assertEquals(
+                """MATCH (`person`:`Person`)
+WHERE `person`.`born` = {`person_born`}
+AND `person`.`name` = {`person_name`}
+RETURN graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`""", query.query)
+        assertEquals("label scan Person", query.strategy)
+    }
+
+    @Test
+    fun connectionSeeksPastCursor() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+            age: Int
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val field = Field("Person", SelectionSet(listOf<Selection<*>>(Field("name"))))
+        val query = Cypher31Generator().generateConnectionQuery(field, Keyset("age", size = 3, cursor = listOf(42, 7)))
+
+        assertEquals(
+                """MATCH (`person`:`Person`)
+WHERE `person`.`age` IS NOT NULL
+AND (`person`.`age` > {`person_cursor`} OR (`person`.`age` = {`person_cursor`} AND id(`person`) > {`person_cursor_id`}))
+RETURN graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`,
+[`person`.`age`, id(`person`)] AS `_cursor`
+ORDER BY `person`.`age` asc, id(`person`) asc
+LIMIT {`person_size`}""", query.query)
+        assertEquals(mapOf("person_cursor_id" to 7, "person_cursor" to 42, "person_size" to 4), query.params)
+        assertEquals(listOf(42, 7), Keyset.decode(Keyset.encode(listOf(42, 7))))
+    }
+
+    @Test
+    @Suppress("UNCHECKED_CAST", "PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+    fun sortCollTopK() {
+        val coll = listOf(3, 1, 4, 1, 5, 9, 2, 6).mapIndexed { i, n -> mapOf<String, Any>("n" to n, "i" to i) } as java.util.List<Map<String, Any>>
+        val procedure = GraphQLProcedure()
+        fun sort(order: String, limit: Long, skip: Long) = procedure.sortColl(coll, listOf(order) as java.util.List<String>, limit, skip).map { it["i"] }
+
+        assertEquals(listOf(1, 3, 6), sort("^n", 3, 0))
+        assertEquals(listOf(6, 0, 2), sort("^n", 3, 2))
+        assertEquals(listOf(5, 7, 4), sort("n", 3, 0))
+        assertEquals(listOf(7, 4, 2, 0, 6, 1, 3), sort("n", -1, 1))
+        assertEquals(emptyList<Any>(), sort("n", 3, 8))
+    }
+
     @Test
     fun matchIncludesLabelsProjection() {
         val metaData = IDLParser.parse("""
@@ -274,7 +426,7 @@ RETURN graphql.labels(`actor`) AS `_labels`,
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -283,7 +435,7 @@ RETURN graphql.labels(`actor`) AS `_labels`,
 
         val field = Field("Actor", selectionSet)
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         assertEquals(
                 """MATCH (`actor`:`Actor`)
@@ -305,7 +457,7 @@ head([ (`actor`)-[:`friend`]->(`actor_friend`:`Person`)  | `actor_friend` {`_lab
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -319,7 +471,7 @@ head([ (`actor`)-[:`friend`]->(`actor_friend`:`Person`)  | `actor_friend` {`_lab
 
         val field = Field("Person", selectionSet)
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         // it's like a cast
         // but perhaps we can just ignore it more or less
@@ -343,7 +495,7 @@ RETURN graphql.labels(`person`) AS `_labels`,
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -351,7 +503,7 @@ RETURN graphql.labels(`person`) AS `_labels`,
 
         val field = Field("Person", selectionSet)
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         assertEquals(
                 """MATCH (`person`:`Person`)
@@ -370,7 +522,7 @@ graphql.runSingle('WITH {this} AS this RETURN 2', {`this`:`person`}) AS `score`"
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -378,12 +530,103 @@ graphql.runSingle('WITH {this} AS this RETURN 2', {`this`:`person`}) AS `score`"
 
         val field = Field("Person", selectionSet)
 
-        val query = generator.generateQueryForField(field,params = mapOf("v" to 42))
+        val (query, params) = generator.generateQueryForField(field,params = mapOf("v" to 42))
 
         assertEquals(
                 """MATCH (`person`:`Person`)
 RETURN graphql.labels(`person`) AS `_labels`,
 graphql.runSingle('WITH {this} AS this RETURN {x}', {`this`:`person`,`x`:{`v`}}) AS `score`""",  query)
+        assertEquals(emptyMap<String,Any>(), params)
+    }
+
+    @Test
+    fun cypherDirectiveInlined() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+            movies: Int @cypher(statement: "MATCH (this)-[:ACTED_IN]->(m) RETURN count(*)")
+            titles(year:Int): [String] @cypher(statement: "MATCH (this)-[:ACTED_IN]->(m:Movie) WHERE m.released = {year} RETURN m.title AS title")
+            score(x:Int): Int @cypher(statement: "WITH {this} AS this RETURN {x} + size((this)--())")
+            total: Int @cypher(statement: "MATCH (this)-->(m) RETURN sum(m.value)")
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val selectionSet = SelectionSet(listOf<Selection<*>>(Field("movies"),
+                Field("titles", listOf(Argument("year", IntValue(BigInteger.valueOf(1999))))),
+                Field("score", listOf(Argument("x", VariableReference("v")))),
+                Field("total")))
+
+        val (query, params) = Cypher31Generator(inlineCypher = true).generateQueryForField(Field("Person", selectionSet), params = mapOf("v" to 42))
+
+        assertEquals(
+                """MATCH (`person`:`Person`)
+RETURN graphql.labels(`person`) AS `_labels`,
+size([ (`person`)-[:ACTED_IN]->(`person_movies_m`) | 1 ]) AS `movies`,
+[ (`person`)-[:ACTED_IN]->(`person_titles_m`:Movie) WHERE `person_titles_m`.released = {`person_titles_year`} | `person_titles_m`.title ] AS `titles`,
+{`v`} + size((`person`)--()) AS `score`,
+graphql.runSingle('WITH {this} AS this MATCH (this)-->(m) RETURN sum(m.value)', {`this`:`person`}) AS `total`""", query)
+        assertEquals(mapOf("person_titles_year" to 1999L), params)
+    }
+
+    @Test
+    fun cypherDirectiveWithKeywordsInStringsOrComments() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+            titles: [String] @cypher(statement: "MATCH (this)-[:ACTED_IN]->(m) WHERE m.title <> 'RETURN m, WITH x' RETURN m.title")
+            quoted: [String] @cypher(statement: "MATCH (this)-[:ACTED_IN]->(`WITH`) RETURN `WITH`.title AS `RETURN`")
+            commented: [String] @cypher(statement: "MATCH (this)-[:ACTED_IN]->(m) /* WITH m LIMIT 1 */ RETURN m.title")
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val selectionSet = SelectionSet(listOf<Selection<*>>(Field("titles"), Field("quoted"), Field("commented")))
+
+        val query = Cypher31Generator(inlineCypher = true).generateQueryForField(Field("Person", selectionSet)).query
+
+        assertEquals(
+                """MATCH (`person`:`Person`)
+RETURN graphql.labels(`person`) AS `_labels`,
+[ (`person`)-[:ACTED_IN]->(`person_titles_m`) WHERE `person_titles_m`.title <> 'RETURN m, WITH x' | `person_titles_m`.title ] AS `titles`,
+[ (`person`)-[:ACTED_IN]->(`person_quoted_WITH`) | `person_quoted_WITH`.title ] AS `quoted`,
+graphql.runMany('WITH {this} AS this MATCH (this)-[:ACTED_IN]->(m) /* WITH m LIMIT 1 */ RETURN m.title', {`this`:`person`}) AS `commented`""", query)
+    }
+
+    @Test
+    fun cypherDirectiveBatched() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+            score(x:Int): Int @cypher(statement: "MATCH (this)-->(m) WHERE m.value > {x} RETURN sum(m.value)")
+            scores: [Int] @cypher(statement: "UNWIND range(0,5) AS value RETURN value")
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val selectionSet = SelectionSet(listOf<Selection<*>>(Field("name"),
+                Field("score", listOf(Argument("x", IntValue(BigInteger.valueOf(3))))),
+                Field("scores")))
+        val field = Field("Person", listOf(Argument("first", IntValue(BigInteger.valueOf(2)))), selectionSet)
+
+        val query = Cypher31Generator(inlineCypher = true, batchCypher = true).generateQueryForField(field)
+
+        val prefix = "UNWIND range(0, size({_batch}) - 1) AS `_index` WITH {_batch}[`_index`] AS this, `_index` "
+        assertEquals(
+                """MATCH (`person`:`Person`)
+WITH `person` LIMIT {`person_first`}
+WITH collect(`person`) AS `_person_batch`
+WITH `_person_batch`, graphql.runBatch('${prefix}MATCH (this)-->(m) WHERE m.value > {x} RETURN `_index`, sum(m.value)', `_person_batch`, {`x`:{`person_score_x`}}, false, 0) AS `_person_score`, graphql.runBatch('${prefix}UNWIND range(0,5) AS value RETURN `_index`, value', `_person_batch`, {}, true, null) AS `_person_scores`
+UNWIND range(0, size(`_person_batch`) - 1) AS `_person_index`
+WITH `_person_batch`[`_person_index`] AS `person`, `_person_score`[`_person_index`] AS `_person_score`, `_person_scores`[`_person_index`] AS `_person_scores`
+RETURN graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`,
+`_person_score` AS `score`,
+`_person_scores` AS `scores`""", query.query)
+        assertEquals(mapOf("person_first" to 2L, "person_score_x" to 3L), query.params)
     }
 
     @Test
@@ -398,7 +641,7 @@ graphql.runSingle('WITH {this} AS this RETURN {x}', {`this`:`person`,`x`:{`v`}})
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -406,7 +649,7 @@ graphql.runSingle('WITH {this} AS this RETURN {x}', {`this`:`person`,`x`:{`v`}})
 
         val field = Field("Person", selectionSet)
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         assertEquals(
                 """MATCH (`person`:`Person`)
@@ -426,7 +669,7 @@ graphql.runMany('WITH {this} AS this RETURN range(0,5)', {`this`:`person`}) AS `
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -434,7 +677,7 @@ graphql.runMany('WITH {this} AS this RETURN range(0,5)', {`this`:`person`}) AS `
 
         val field = Field("Person", selectionSet)
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 
         assertEquals(
                 """MATCH (`person`:`Person`)
@@ -453,7 +696,7 @@ head([ x IN graphql.runMany('WITH {this} AS this RETURN this', {`this`:`person`}
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -461,7 +704,7 @@ head([ x IN graphql.runMany('WITH {this} AS this RETURN this', {`this`:`person`}
 
         val field = Field("Person", selectionSet)
 
-        val query = generator.generateQueryForField(field)
+        val query = generator.generateQueryForField(field).query
 /*
 query Person {
    name, born
@@ -484,7 +727,7 @@ RETURN graphql.labels(`person`) AS `_labels`,
         }
         """)
 
-        GraphSchemaScanner.allTypes.putAll(metaData)
+        GraphSchemaScanner.publish(metaData)
 
         val generator = Cypher31Generator()
 
@@ -492,13 +735,159 @@ RETURN graphql.labels(`person`) AS `_labels`,
 
         val field = Field("Person", selectionSet)
 
-        val query = generator.generateQueryForField(field)
+        val (query, params) = generator.generateQueryForField(field)
 
         assertEquals(
                 """MATCH (`person`:`Person`)
 RETURN graphql.labels(`person`) AS `_labels`,
 `person`.`name` AS `name`,
-graphql.runSingle('WITH {this} AS this RETURN {value}', {`this`:`person`,`value`:7}) AS `born`""",  query)
+graphql.runSingle('WITH {this} AS this RETURN {value}', {`this`:`person`,`value`:{`person_born_value`}}) AS `born`""",  query)
+        assertEquals(mapOf("person_born_value" to 7L), params)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun sameShapeSameStatement() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val generator = Cypher31Generator()
+
+        fun personQuery(name: String, first: Int) = generator.generateQueryForField(Field("Person",
+                listOf(Argument("filter", ObjectValue(listOf(ObjectField("name_contains", StringValue(name))))), Argument("first", IntValue(BigInteger.valueOf(first.toLong())))),
+                SelectionSet(listOf<Selection<*>>(Field("name")))))
+
+        val first = personQuery("Mic", 10)
+        val second = personQuery("Meg", 5)
+
+        assertEquals(
+                """MATCH (`person`:`Person`)
+WHERE ( `person`.`name` CONTAINS {`person_filter`}.`name_contains`)
+RETURN graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`
+LIMIT {`person_first`}""", first.query)
+        assertEquals(first.query, second.query)
+        assertEquals(mapOf("person_filter" to mapOf("name_contains" to "Meg"), "person_first" to 5L), second.params)
+    }
+
+    @Test
+    fun filterRelationshipsShortCircuit() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+            movies: [Movie] @relation(name:"ACTED_IN")
+        }
+        type Movie {
+            title: String
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val filter = ObjectValue(listOf(ObjectField("movies_some", ObjectValue(listOf(ObjectField("title", StringValue("The Matrix"))))),
+                ObjectField("movies", NullValue.Null)))
+        val query = Cypher31Generator().generateQueryForField(Field("Person", listOf(Argument("filter", filter)), SelectionSet(listOf<Selection<*>>(Field("name")))))
+
+        assertEquals(
+                """MATCH (`person`:`Person`)
+WHERE ( ANY(`person_Movie` IN [(`person`)-[:`ACTED_IN`]->(`person_Movie`) | `person_Movie`] WHERE ( `person_Movie`.`title` = {`person_filter`}.`movies_some`.`title`)) AND size((`person`)-[:`ACTED_IN`]->()) = 0)
+RETURN graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`""", query.query)
+    }
+
+    @Test
+    fun relationFilterWithoutNestedFilterComparesDegree() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+            movies: [Movie] @relation(name:"ACTED_IN")
+            friends: [Person] @relation(name:"KNOWS", direction:"IN")
+        }
+        type Movie {
+            title: String
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val filter = ObjectValue(listOf(ObjectField("movies_some", ObjectValue(emptyList())),
+                ObjectField("friends_none", ObjectValue(emptyList())),
+                ObjectField("movies_single", ObjectValue(emptyList())),
+                ObjectField("friends_every", ObjectValue(emptyList()))))
+        val query = Cypher31Generator().generateQueryForField(Field("Person", listOf(Argument("filter", filter)), SelectionSet(listOf<Selection<*>>(Field("name")))))
+
+        assertEquals(
+                """MATCH (`person`:`Person`)
+WHERE (size((`person`)-[:`ACTED_IN`]->()) > 0 AND size((`person`)<-[:`KNOWS`]-()) = 0 AND size((`person`)-[:`ACTED_IN`]->()) = 1 AND  ALL(`person_Person` IN [(`person`)<-[:`KNOWS`]-(`person_Person`) | `person_Person`] WHERE true))
+RETURN graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`""", query.query)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun cachedStatementRebindsLiterals() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+            born: Int
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val generator = Cypher31Generator()
+        val cache = StatementCache()
+
+        fun personQuery(name: String, born: Value<*>, params: Map<String,Any?>) : CypherQuery {
+            val field = Field("Person", listOf(Argument("name", StringValue(name)), Argument("born", born)), SelectionSet(listOf<Selection<*>>(Field("name"))))
+            return cache.statement(1, field, emptyMap(), params) { generator.generateQueryForField(field, params = params.filterValues { it != null }.mapValues { it.value!! }) }
+        }
+
+        val first = personQuery("Michael Hunger", VariableReference("born"), mapOf("born" to 1960))
+        val second = personQuery("Meg Ryan", VariableReference("born"), mapOf("born" to 1961))
+        val third = personQuery("Meg Ryan", NullValue.Null, emptyMap())
+
+        assertEquals(first.query, second.query)
+        assertEquals(mapOf("person_name" to "Meg Ryan"), second.params)
+        assertEquals(mapOf("hits" to 1L, "misses" to 2L), cache.stats().filterKeys { it == "hits" || it == "misses" })
+        assertTrue(third.query.contains("`person`.`born` = {`person_born`}"))
+        assertEquals(mapOf("person_name" to "Meg Ryan", "person_born" to null), third.params)
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun combineRootFields() {
+        val metaData = IDLParser.parse("""
+        type Person {
+            name: String
+        }
+        """)
+
+        GraphSchemaScanner.publish(metaData)
+
+        val generator = Cypher31Generator()
+
+        fun personQuery(name: String) = Field("Person", listOf(Argument("name", StringValue(name))), SelectionSet(listOf<Selection<*>>(Field("name"))))
+
+        val (query, params) = generator.generateQueryForFields(listOf(personQuery("Joe") to null, personQuery("Jane") to null))
+
+        assertEquals(mapOf("person_name" to "Joe", "person_name_1" to "Jane"), params)
+        assertEquals(
+                """MATCH (`person`:`Person`)
+WHERE `person`.`name` = {`person_name`}
+WITH graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`
+RETURN 0 AS `_field`, {`_labels`:`_labels`, `name`:`name`} AS `_row`
+UNION ALL
+MATCH (`person`:`Person`)
+WHERE `person`.`name` = {`person_name_1`}
+WITH graphql.labels(`person`) AS `_labels`,
+`person`.`name` AS `name`
+RETURN 1 AS `_field`, {`_labels`:`_labels`, `name`:`name`} AS `_row`""", query)
+    }
 }
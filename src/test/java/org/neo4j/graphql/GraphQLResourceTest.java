@@ -94,6 +94,46 @@ public class GraphQLResourceTest {
         assertEquals(1,data.size());
         assertEquals("Meg Ryan",data.get(0).get("name"));
     }
+    @Test
+    public void persistedQuery() throws Exception {
+        String query = "query PersistedPeopleQuery { Person(born:1961) {name} }";
+        Map<String, Object> extensions = map("persistedQuery", map("version", 1, "sha256Hash", PersistedQueries.INSTANCE.hash(query)));
+
+        HTTP.Response unknown = HTTP.POST(serverURI.toString(), map("extensions", extensions));
+        assertEquals(200, unknown.status());
+        Map<String, List<Map>> errors = unknown.content();
+        assertEquals("PersistedQueryNotFound", errors.get("errors").get(0).get("message"));
+
+        HTTP.Response registered = HTTP.POST(serverURI.toString(), map("query", query, "extensions", extensions));
+        assertEquals(200, registered.status());
+
+        HTTP.Response response = HTTP.POST(serverURI.toString(), map("extensions", extensions));
+        assertEquals(200, response.status());
+        Map<String, Map<String,List<Map>>> result = response.content();
+        assertNull(result.get("errors"));
+        assertEquals("Meg Ryan", result.get("data").get("Person").get(0).get("name"));
+    }
+
+    @Test
+    public void persistedQueryInvalidNotRegistered() throws Exception {
+        String query = "{ Person { unknownField } }";
+        Map<String, Object> extensions = map("persistedQuery", map("version", 1, "sha256Hash", PersistedQueries.INSTANCE.hash(query)));
+
+        HTTP.Response invalid = HTTP.POST(serverURI.toString(), map("query", query, "extensions", extensions));
+        assertEquals(200, invalid.status());
+
+        HTTP.Response response = HTTP.POST(serverURI.toString(), map("extensions", extensions));
+        Map<String, List<Map>> errors = response.content();
+        assertEquals("PersistedQueryNotFound", errors.get("errors").get(0).get("message"));
+    }
+
+    @Test
+    public void persistedQueryHashMismatch() throws Exception {
+        Map<String, Object> extensions = map("persistedQuery", map("version", 1, "sha256Hash", PersistedQueries.INSTANCE.hash("{ Movie {title} }")));
+        HTTP.Response response = HTTP.POST(serverURI.toString(), map("query", "{ Person {name} }", "extensions", extensions));
+        assertEquals(400, response.status());
+    }
+
     @Test
     public void personByNameParameter() throws Exception {
         HTTP.Response response = HTTP.POST(serverURI.toString(), map("query", "query AllPeopleQuery($name:String!) { Person(name:$name) {name,born} }","variables",map("name","Meg Ryan")));
@@ -8,7 +8,10 @@ import graphql.schema.*
 import org.antlr.v4.runtime.misc.ParseCancellationException
 import org.antlr.v4.runtime.InputMismatchException
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
 import org.junit.Test
+import org.neo4j.graphql.util.Operators
 import java.util.*
 import kotlin.test.assertNull
 import kotlin.test.assertTrue
@@ -17,8 +20,7 @@ class GraphQLSchemaBuilderTest {
 
     @Test
     fun emptyNode() {
-        GraphSchemaScanner.schema = null
-        GraphSchemaScanner.allTypes.clear()
+        GraphSchemaScanner.publish(emptyMap())
         val md = MetaData("Actor")
         val schema = GraphQLSchemaBuilder(listOf(md))
         val type: GraphQLObjectType = schema.toGraphQLObjectType(md)
@@ -34,10 +36,21 @@ class GraphQLSchemaBuilderTest {
         assertNull(ordering)
     }
 
+    @Test
+    fun publishedSnapshotsAreIsolated() {
+        val first = GraphSchemaScanner.publish(mapOf("Actor" to MetaData("Actor")))
+        val builder = GraphQLSchemaBuilder(first.metaDatas(), snapshot = first)
+        val second = GraphSchemaScanner.publish(emptyMap())
+
+        assertTrue(second.version > first.version)
+        assertSame(second, GraphSchemaScanner.snapshot())
+        assertEquals(setOf("Actor"), first.types.keys)
+        assertEquals(setOf("Actor"), builder.typesByName.keys)
+    }
+
     @Test
     fun mutationField() {
-        GraphSchemaScanner.schema = null
-        GraphSchemaScanner.allTypes.clear()
+        GraphSchemaScanner.publish(emptyMap())
         val md = MetaData("Actor")
         md.addLabel("Person")
         md.addProperty("name", MetaData.PropertyType("String", nonNull = 1))
@@ -48,8 +61,7 @@ class GraphQLSchemaBuilderTest {
 
     @Test
     fun mutationFieldID() {
-        GraphSchemaScanner.schema = null
-        GraphSchemaScanner.allTypes.clear()
+        GraphSchemaScanner.publish(emptyMap())
         val md = MetaData("Actor")
         md.addLabel("Person")
         md.addProperty("name", MetaData.PropertyType("ID", nonNull = 1))
@@ -61,6 +73,76 @@ class GraphQLSchemaBuilderTest {
         assertEquals("deleteActor", mutationFields[3].name)
     }
 
+    @Test
+    fun reuseUnchangedTypes() {
+        GraphSchemaScanner.publish(emptyMap())
+        val person = MetaData("Person")
+        person.addProperty("name", MetaData.PropertyType("String"))
+        val movie = MetaData("Movie")
+        movie.addProperty("title", MetaData.PropertyType("String"))
+        val builder = GraphQLSchemaBuilder(listOf(person, movie))
+        val schema = builder.buildSchema()
+
+        val changedMovie = MetaData("Movie")
+        changedMovie.addProperty("title", MetaData.PropertyType("String"))
+        changedMovie.addProperty("released", MetaData.PropertyType("Int"))
+        val nextBuilder = GraphQLSchemaBuilder(listOf(person, changedMovie), builder.typeCache)
+        val nextSchema = nextBuilder.buildSchema()
+
+        assertSame(schema.getType("Person"), nextSchema.getType("Person"))
+        assertSame(schema.getType("_PersonFilter"), nextSchema.getType("_PersonFilter"))
+        assertNotSame(schema.getType("Movie"), nextSchema.getType("Movie"))
+        assertEquals(1, nextBuilder.typeCache?.reused)
+    }
+
+    @Test
+    fun rebuiltSchemaTakesOverReusedFields() {
+        GraphSchemaScanner.publish(emptyMap())
+        val person = MetaData("Person")
+        person.addProperty("name", MetaData.PropertyType("String"))
+        person.addIdProperty("name")
+        val first = GraphQLSchemaBuilder(listOf(person))
+        first.buildSchema()
+        val firstCache = first.releaseTypeCache()!!
+        assertNull(first.typeCache)
+
+        val next = GraphQLSchemaBuilder(listOf(person), firstCache, maxCost = 5)
+        val schema = next.buildSchema()
+        val nextCache = next.releaseTypeCache()!!
+        assertEquals(1, nextCache.reused)
+
+        // the reused fields are the same instances, their data fetchers now run against the new build and its config
+        assertSame(firstCache.queryFields["Person"], nextCache.queryFields["Person"])
+        assertSame(firstCache.mutationFields["Person"], nextCache.mutationFields["Person"])
+        assertSame(firstCache.owners["Person"], nextCache.owners["Person"])
+        assertSame(next, nextCache.owners["Person"]!!.builder)
+        assertSame(schema.getType("Person"), nextCache.objectTypes["Person"])
+    }
+
+    @Test
+    fun filterFieldsOfSchema() {
+        GraphSchemaScanner.publish(emptyMap())
+        val person = MetaData("Person")
+        person.addProperty("name", MetaData.PropertyType("String"))
+        person.mergeRelationship("ACTED_IN", "movies", "Movie", true, true, null)
+        val movie = MetaData("Movie")
+        movie.addProperty("title", MetaData.PropertyType("String"))
+        val builder = GraphQLSchemaBuilder(listOf(person, movie))
+        builder.buildSchema()
+
+        val filterFields = builder.filterFields["Person"]!!
+        assertEquals(GraphQLSchemaBuilder.FilterField("name", Operators.NC), filterFields["name_not_contains"])
+        assertEquals(GraphQLSchemaBuilder.FilterField("name", Operators.EQ), filterFields["name"])
+        assertEquals(Operators.SOME, filterFields["movies_some"]?.op)
+        assertEquals("Movie", filterFields["movies_some"]?.relationship?.label)
+        assertNull(filterFields["AND"])
+
+        // reused filter types are resolved for the new metadata as well
+        val nextBuilder = GraphQLSchemaBuilder(listOf(person.copy(), movie), builder.typeCache)
+        nextBuilder.buildSchema()
+        assertEquals(builder.filterFields, nextBuilder.filterFields)
+    }
+
     @Test
     fun inputType() {
         val input = """
@@ -125,8 +207,7 @@ schema {
 }
 """
         try {
-            GraphSchemaScanner.allTypes.clear()
-            GraphSchemaScanner.schema = idl
+            GraphSchemaScanner.publish(emptyMap(), idl)
 
             val document = Parser().parseDocument(idl)
             val builder = GraphQLSchemaBuilder(IDLParser.parse(idl).values)
@@ -169,8 +250,7 @@ type TestObject {
 }
 """
         try {
-            GraphSchemaScanner.allTypes.clear()
-            GraphSchemaScanner.schema = idl
+            GraphSchemaScanner.publish(emptyMap(), idl)
 
             val document = Parser().parseDocument(idl)
             val builder = GraphQLSchemaBuilder(IDLParser.parse(idl).values)
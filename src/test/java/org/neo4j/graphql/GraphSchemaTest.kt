@@ -1,11 +1,13 @@
 package org.neo4j.graphql
 
+import graphql.ExecutionInput
 import org.junit.After
 import org.junit.Assert
 import org.junit.Before
 import org.junit.Test
 import org.neo4j.graphdb.GraphDatabaseService
 import org.neo4j.test.TestGraphDatabaseFactory
+import java.util.concurrent.TimeUnit
 
 /**
  * @author mh
@@ -32,14 +34,115 @@ class GraphSchemaTest {
     fun resetOnCreateProperty() {
         val graphQL = GraphSchema.getGraphQL(db!!)
         db!!.execute("CREATE (:Person {age:42})").close()
-        Assert.assertNotSame(graphQL, GraphSchema.getGraphQL(db!!))
+        Assert.assertNotSame(graphQL, rebuiltGraphQL())
     }
 
     @Test
     fun resetOnCreateLabel() {
         val graphQL = GraphSchema.getGraphQL(db!!)
         db!!.execute("CREATE (:User {name:'Jane'})").close()
-        Assert.assertNotSame(graphQL, GraphSchema.getGraphQL(db!!))
+        Assert.assertNotSame(graphQL, rebuiltGraphQL())
+    }
+
+    @Test
+    fun resetOnCreateRelationshipType() {
+        val graphQL = GraphSchema.getGraphQL(db!!)
+        db!!.execute("MATCH (p:Person) CREATE (p)-[:KNOWS]->(p)").close()
+        Assert.assertNotSame(graphQL, rebuiltGraphQL())
+    }
+
+    @Test
+    fun serveStaleWhileRebuilding() {
+        val graphQL = GraphSchema.getGraphQL(db!!)
+        val staleServed = GraphSchema.stats()["staleServed"] as Long
+        db!!.execute("CREATE (:Person {age:42})").close()
+        Assert.assertSame(graphQL, GraphSchema.getGraphQL(db!!))
+        Assert.assertEquals(staleServed + 1, GraphSchema.stats()["staleServed"])
+        Assert.assertNotSame(graphQL, rebuiltGraphQL())
+    }
+
+    private fun rebuiltGraphQL() = GraphSchema.getGraphQL(db!!).let { GraphSchema.awaitRebuild(); GraphSchema.getGraphQL(db!!) }
+
+    @Test
+    fun foldCommitsIntoSchema() {
+        GraphSchema.getGraphQL(db!!)
+        db!!.execute("MATCH (p:Person) CREATE (p)-[:KNOWS]->(:Person:Admin {age:42})").close()
+        rebuiltGraphQL()
+        val person = GraphSchemaScanner.snapshot().metaData("Person")!!
+        Assert.assertEquals(setOf("name", "age"), person.properties.keys)
+        Assert.assertEquals(setOf("Admin"), person.labels)
+        Assert.assertEquals(MetaData.RelationshipInfo("knows", "KNOWS", "Person", true, false), person.relationships["knows"])
+        Assert.assertEquals(true, GraphSchema.stats()["incremental"])
+    }
+
+    @Test
+    fun sampleSchemaInBackground() {
+        val run = SchemaSampler.start(db!!)
+        Assert.assertTrue(run.await(60, TimeUnit.SECONDS))
+        Assert.assertEquals("done", run.progress.state())
+        Assert.assertEquals(1, run.progress.labelsDone.get())
+        Assert.assertEquals(1L, run.progress.nodes.get())
+        Assert.assertEquals(GraphSchema.stats()["epoch"], GraphSchema.stats()["builtEpoch"])
+    }
+
+    @Test
+    fun parallelRootFields() {
+        val parallelDb = TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(GraphSchema.CONFIG_PARALLEL, "2").newGraphDatabase()
+        try {
+            parallelDb.execute("CREATE (:Person {name:'Joe'}), (:Movie {title:'Matrix'})").close()
+            val ctx = GraphQLContext(parallelDb)
+            val result = parallelDb.beginTx().use { tx ->
+                GraphSchema.getGraphQL(parallelDb).execute(ExecutionInput.newExecutionInput().query("{ Person { name } films: Movie { title } }").context(ctx).build())
+                        .also { tx.success() }
+            }
+            Assert.assertEquals(emptyList<Any>(), result.errors)
+            Assert.assertEquals(mapOf("Person" to listOf(mapOf("name" to "Joe")), "films" to listOf(mapOf("title" to "Matrix"))), result.getData<Any>())
+            Assert.assertEquals(setOf("Person", "films"), (ctx.backLog["timings"] as Map<*, *>).keys)
+            Assert.assertEquals(2, GraphSchema.stats()["parallel"])
+        } finally {
+            parallelDb.shutdown()
+        }
+    }
+
+    @Test
+    fun rejectQueriesOverCostLimit() {
+        val limitedDb = TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(GraphQLSchemaBuilder.CONFIG_MAX_COST, "5").newGraphDatabase()
+        try {
+            limitedDb.execute("UNWIND range(1,10) AS i CREATE (:Person {name:'Person '+i})").close()
+            fun execute(query: String, ctx: GraphQLContext) = limitedDb.beginTx().use { tx ->
+                GraphSchema.getGraphQL(limitedDb).execute(ExecutionInput.newExecutionInput().query(query).context(ctx).build()).also { tx.success() }
+            }
+            val rejected = GraphQLContext(limitedDb)
+            Assert.assertTrue(execute("{ Person { name } }", rejected).errors.single().message.contains("Estimated cost 10 of Person exceeds the limit of 5"))
+            Assert.assertEquals(mapOf("Person" to 10L), rejected.backLog["cost"])
+
+            val paged = GraphQLContext(limitedDb)
+            val result = execute("{ Person(first:3) { name } }", paged)
+            Assert.assertEquals(emptyList<Any>(), result.errors)
+            Assert.assertEquals(3, result.getData<Map<String, List<*>>>()["Person"]!!.size)
+            Assert.assertEquals(mapOf("Person" to 3L), paged.backLog["cost"])
+
+            // the budget is shared by the root fields of the operation
+            val twice = GraphQLContext(limitedDb)
+            val error = execute("{ a: Person(first:3) { name } b: Person(first:3) { name } }", twice).errors.single()
+            Assert.assertTrue(error.message.contains("Estimated cost 6 of the operation including b exceeds the limit of 5"))
+            Assert.assertEquals(mapOf("a" to 3L, "b" to 3L), twice.backLog["cost"])
+        } finally {
+            limitedDb.shutdown()
+        }
+    }
+
+    @Test
+    fun costCountsEachLevelOnce() {
+        db!!.execute("MATCH (p:Person) UNWIND range(1,3) AS i CREATE (p)-[:ACTED_IN]->(:Movie {title:'Movie '+i})").close()
+        val graphQL = rebuiltGraphQL()
+        val ctx = GraphQLContext(db!!)
+        val result = db!!.beginTx().use { tx ->
+            graphQL.execute(ExecutionInput.newExecutionInput().query("{ Person { name actedIn { title } } }").context(ctx).build()).also { tx.success() }
+        }
+        Assert.assertEquals(emptyList<Any>(), result.errors)
+        // one person and its three movies
+        Assert.assertEquals(mapOf("Person" to 4L), ctx.backLog["cost"])
     }
 
     @Test
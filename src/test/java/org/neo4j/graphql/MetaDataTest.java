@@ -66,6 +66,70 @@ public class MetaDataTest {
         }
     }
 
+    @Test
+    public void countRelationships() throws Exception {
+        GraphDatabaseService countsDb = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder()
+                .setConfig(GraphSchemaScanner.CONFIG_RELATIONSHIPS, "counts").newGraphDatabase();
+        try {
+            countsDb.execute("CREATE (berlin:Location {name:'Berlin'}) WITH berlin UNWIND range(1,5) as id CREATE (:User {name:'John '+id})-[:LIVES_IN]->(berlin)").close();
+            try (Transaction tx = countsDb.beginTx()) {
+                MetaData person = GraphSchemaScanner.from(countsDb, label("User"));
+                assertEquals(map("livesIn", new RelationshipInfo("livesIn","LIVES_IN", "Location", true, false, null,null,null,0)), person.relationships);
+                MetaData location = GraphSchemaScanner.from(countsDb, label("Location"));
+                assertEquals(map("livesIn", new RelationshipInfo("livesIn","LIVES_IN", "User", false, true, null,null, null,0)), location.relationships);
+                tx.success();
+            }
+        } finally {
+            countsDb.shutdown();
+        }
+    }
+
+    @Test
+    public void selfRelationshipsHaveOneFieldPerDirection() throws Exception {
+        GraphDatabaseService countsDb = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder()
+                .setConfig(GraphSchemaScanner.CONFIG_RELATIONSHIPS, "counts").newGraphDatabase();
+        try {
+            for (GraphDatabaseService graph : asList(db, countsDb)) {
+                graph.execute("CREATE (a:Person {name:'a'})-[:KNOWS]->(:Person {name:'b'}), (a)-[:KNOWS]->(:Person {name:'c'})").close();
+                try (Transaction tx = graph.beginTx()) {
+                    MetaData person = GraphSchemaScanner.from(graph, label("Person"));
+                    assertEquals(map("knows", new RelationshipInfo("knows","KNOWS", "Person", true, true, null,null,null,0),
+                            "knowsIn", new RelationshipInfo("knowsIn","KNOWS", "Person", false, false, null,null,null,0)), person.relationships);
+                    tx.success();
+                }
+            }
+        } finally {
+            countsDb.shutdown();
+        }
+    }
+
+    @Test
+    public void samplePropertyTypes() throws Exception {
+        db.execute("UNWIND range(1,3) as id CREATE (:Thing {value:id}) CREATE (:Thing {value:'four', name:'four'})").close();
+        try (Transaction tx = db.beginTx()) {
+            MetaData thing = GraphSchemaScanner.from(db, label("Thing"));
+            assertEquals(4, thing.getSampledNodes());
+            assertEquals("Long", thing.getProperties().get("value").getType().getName());
+            MetaData.PropertyStats value = thing.getPropertyStats().get("value");
+            assertEquals(4, value.getCount());
+            assertEquals(true, value.getConflict());
+            assertEquals(0.25, thing.getPropertyStats().get("name").frequency(thing.getSampledNodes()), 0.001);
+            assertEquals(false, value.getTruncated());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void sampleByRandomNodeIds() throws Exception {
+        db.execute("UNWIND range(1,1000) as id CREATE (:Thing {value:id})").close();
+        try (Transaction tx = db.beginTx()) {
+            MetaData thing = GraphSchemaScanner.from(db, label("Thing"));
+            assertEquals(GraphSchemaScanner.DEFAULT_SAMPLE_NODES, thing.getSampledNodes());
+            assertEquals(false, thing.getPropertyStats().get("value").getTruncated());
+            tx.success();
+        }
+    }
+
     @Test
     public void allUsersQuery() throws Exception {
         Map<String, List<Map>> result = executeQuery("query UserQuery { User {id,name,age} User {age,name}}", map());
@@ -153,6 +217,15 @@ public class MetaDataTest {
         System.out.println("result = " + result);
         assertEquals(2, ((List)result.get("Location").get(0).get("livesIn")).size());
     }
+    @Test
+    public void firstOffsetOnDenseNode() throws Exception {
+        db.execute("CREATE (hub:Location {name:'Hub'}) WITH hub UNWIND range(1,2000) as id CREATE (:User {name:'Jane '+id, id:id, age:id})-[:LIVES_IN]->(hub)").close();
+        Map<String, List<Map>> result = executeQuery("{ Location(name:\"Hub\") { livesIn(first:3,offset:10) { name, livesIn { name } } } }", map());
+        List<Map> users = (List<Map>) result.get("Location").get(0).get("livesIn");
+        assertEquals(3, users.size());
+        assertEquals(map("name", "Hub"), users.get(0).get("livesIn"));
+    }
+
     @Test
 
     public void nestedOrderByQuery() throws Exception {
@@ -197,6 +270,16 @@ public class MetaDataTest {
         assertEquals(true, result.get("plan").toString().contains("Estimated Rows"));
     }
 
+    @Test
+    public void explainIndexLookup() throws Exception {
+        db.execute("CREATE INDEX ON :User(name)").close();
+        db.execute("CALL db.awaitIndexes()").close();
+        graphql = new GraphQL(GraphQLSchemaBuilder.buildSchema(db));
+        Map<String, Object> result = getBacklog("query UserQuery { User(name:\"John 1\", age:1) @explain {name} }", map());
+        assertEquals("index User(name)", result.get("strategy"));
+        assertEquals(true, result.get("query").toString().startsWith("MATCH (`user`:`User` {`name`:{`user_name`}})\nWHERE `user`.`age` = {`user_age`}"));
+    }
+
     @Test @Ignore
     public void versionQuery() throws Exception {
         ExecutionResult result = getResult("query UserQuery { User @version(version:\"3.1\") {name} }", map());
@@ -0,0 +1,44 @@
+package org.neo4j.graphql.benchmark;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphql.*;
+import org.neo4j.helpers.collection.Iterators;
+import org.neo4j.kernel.impl.proc.Procedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An impermanent database with the graphql procedures and functions for the benchmarks that run statements.
+ */
+final class BenchmarkDatabase {
+    private BenchmarkDatabase() {
+    }
+
+    static GraphDatabaseService start(String... statements) throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Procedures procedures = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class);
+        procedures.registerFunction(GraphQLProcedure.class);
+        procedures.registerProcedure(GraphQLProcedure.class);
+        for (String statement : statements) {
+            db.execute(statement).close();
+        }
+        return db;
+    }
+
+    /** the statement the generator produces for the first root field of the query on the types of the idl */
+    static CypherQuery generate(CypherGenerator generator, String idl, String query) {
+        Map<String, MetaData> metaDatas = GraphSchemaScanner.Companion.publish(IDLParser.INSTANCE.parse(idl), null).getTypes();
+        return generator.generateQueryForField(CypherGeneratorBenchmark.rootField(query), null, false, Collections.emptyMap(), Collections.emptyMap(), metaDatas, Collections.emptyMap());
+    }
+
+    /** runs the statement and reads all rows */
+    static long run(GraphDatabaseService db, String statement, Map<String, Object> params) {
+        try (Result result = db.execute(statement, params)) {
+            return Iterators.count(result);
+        }
+    }
+}
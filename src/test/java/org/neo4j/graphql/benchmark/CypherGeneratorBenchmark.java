@@ -0,0 +1,56 @@
+package org.neo4j.graphql.benchmark;
+
+import graphql.language.Field;
+import graphql.language.OperationDefinition;
+import graphql.parser.Parser;
+import org.neo4j.graphql.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generating the statement of a nested movie / actor query against taking it from the {@link StatementCache},
+ * which only re-binds the literal values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CypherGeneratorBenchmark {
+    static final String IDL = "type Movie { title: String released: Int actors: [Person] @relation(name:\"ACTED_IN\", direction:\"IN\") }\n" +
+            "type Person { name: String born: Int movies: [Movie] @relation(name:\"ACTED_IN\") }";
+
+    private static final String QUERY = "query($title: String) { Movie(title: $title) { title released " +
+            "actors(first: 5, filter: { born_gt: 1960 }) { name born movies(first: 3) { title released } } } }";
+
+    private final CypherGenerator generator = new Cypher31Generator();
+    private final StatementCache cache = new StatementCache(StatementCache.DEFAULT_SIZE);
+    private final Map<String, Object> params = Collections.singletonMap("title", "The Matrix");
+    private Map<String, MetaData> metaDatas;
+    private Field field;
+
+    @Setup
+    public void setUp() {
+        metaDatas = GraphSchemaScanner.Companion.publish(IDLParser.INSTANCE.parse(IDL), null).getTypes();
+        field = rootField(QUERY);
+    }
+
+    @Benchmark
+    public CypherQuery generate() {
+        return generator.generateQueryForField(field, null, false, Collections.emptyMap(), params, metaDatas, Collections.emptyMap());
+    }
+
+    @Benchmark
+    public CypherQuery cached() {
+        return cache.statement(1L, field, Collections.emptyMap(), params, this::generate);
+    }
+
+    static Field rootField(String query) {
+        OperationDefinition operation = (OperationDefinition) new Parser().parseDocument(query).getDefinitions().get(0);
+        return (Field) operation.getSelectionSet().getSelections().get(0);
+    }
+}
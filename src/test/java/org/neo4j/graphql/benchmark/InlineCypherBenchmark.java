@@ -0,0 +1,53 @@
+package org.neo4j.graphql.benchmark;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphql.CypherQuery;
+import org.neo4j.graphql.Cypher31Generator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * `@cypher` fields of 1000 movies compiled into the generated statement against running them per movie with
+ * graphql.runSingle / runMany.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InlineCypherBenchmark {
+    private static final String IDL = "type Movie { title: String " +
+            "actorCount: Int @cypher(statement: \"MATCH (this)<-[:ACTED_IN]-(p:Person) RETURN count(p)\") " +
+            "cast: [String] @cypher(statement: \"MATCH (this)<-[:ACTED_IN]-(p:Person) RETURN p.name\") }\n" +
+            "type Person { name: String }";
+
+    private static final String QUERY = "{ Movie { title actorCount cast } }";
+
+    @Param({"true", "false"})
+    public boolean inline;
+
+    private GraphDatabaseService db;
+    private CypherQuery query;
+
+    @Setup
+    public void setUp() throws Exception {
+        // every movie has 5 of the 200 actors
+        db = BenchmarkDatabase.start(
+                "UNWIND range(1,1000) AS id CREATE (:Movie {id:id, title:'Movie '+id})",
+                "UNWIND range(1,200) AS id CREATE (:Person {id:id, name:'Person '+id})",
+                "MATCH (m:Movie), (p:Person) WHERE (m.id + p.id) % 40 = 0 CREATE (p)-[:ACTED_IN]->(m)");
+        query = BenchmarkDatabase.generate(new Cypher31Generator(false, inline, false), IDL, QUERY);
+    }
+
+    @TearDown
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Benchmark
+    public long movies() {
+        return BenchmarkDatabase.run(db, query.getQuery(), query.getParams());
+    }
+}
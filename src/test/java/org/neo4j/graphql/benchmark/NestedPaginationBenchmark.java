@@ -0,0 +1,61 @@
+package org.neo4j.graphql.benchmark;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphql.CypherQuery;
+import org.neo4j.graphql.Cypher31Generator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A paginated relationship field of a dense node: the generated statement slices the matched neighbours before it
+ * projects them, the previous form projected every neighbour with its nested fields and sliced the result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NestedPaginationBenchmark {
+    private static final String QUERY = "{ Movie(title: \"Movie 1\") { title actors(first: 2) { name movies { title } } } }";
+
+    // what the generator wrote before the slice was moved in front of the projection
+    private static final String PROJECT_THEN_SLICE = "MATCH (`movie`:`Movie`)\n" +
+            "WHERE `movie`.`title` = {`movie_title`}\n" +
+            "RETURN graphql.labels(`movie`) AS `_labels`,\n" +
+            "`movie`.`title` AS `title`,\n" +
+            "[ (`movie`)<-[:`ACTED_IN`]-(`movie_actors`:`Person`)  | `movie_actors` {`_labels` : graphql.labels(`movie_actors`), .`name`, " +
+            "`movies` : [ (`movie_actors`)-[:`ACTED_IN`]->(`movie_actors_movies`:`Movie`)  | `movie_actors_movies` {`_labels` : graphql.labels(`movie_actors_movies`), .`title`}]}][0..2] AS `actors`";
+
+    private GraphDatabaseService db;
+    private CypherQuery sliced;
+    private final Map<String, Object> params = Collections.singletonMap("movie_title", "Movie 1");
+
+    @Setup
+    public void setUp() throws Exception {
+        // 10 movies with the same 2000 actors each
+        db = BenchmarkDatabase.start(
+                "UNWIND range(1,10) AS id CREATE (:Movie {title:'Movie '+id, released:1990+id})",
+                "UNWIND range(1,2000) AS id CREATE (:Person {name:'Person '+id, born:1950+id%50})",
+                "MATCH (m:Movie), (p:Person) CREATE (p)-[:ACTED_IN]->(m)");
+        sliced = BenchmarkDatabase.generate(new Cypher31Generator(), CypherGeneratorBenchmark.IDL, QUERY);
+    }
+
+    @TearDown
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Benchmark
+    public long sliceThenProject() {
+        return BenchmarkDatabase.run(db, sliced.getQuery(), sliced.getParams());
+    }
+
+    @Benchmark
+    public long projectThenSlice() {
+        return BenchmarkDatabase.run(db, PROJECT_THEN_SLICE, params);
+    }
+}
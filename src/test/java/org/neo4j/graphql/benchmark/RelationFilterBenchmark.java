@@ -0,0 +1,74 @@
+package org.neo4j.graphql.benchmark;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphql.CypherQuery;
+import org.neo4j.graphql.Cypher31Generator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relationship filters on actors with 5000 movies each. A `_some` filter without nested filter is a degree check.
+ * With a nested filter the movies are still collected, but ANY stops evaluating the predicate at the first match.
+ * The previous form evaluated the predicate for every movie into a list and checked that list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelationFilterBenchmark {
+    private static final String SOME = "{ Person(filter: { movies_some: {} }) { name } }";
+    private static final String SOME_TITLE = "{ Person(filter: { movies_some: { title: \"Movie 1\" } }) { name } }";
+
+    private static final String SOME_BEFORE = "MATCH (`person`:`Person`)\n" +
+            "WHERE ANY(`person_Movie_Cond` IN [(`person`)-[:`ACTED_IN`]->(`person_Movie`) | true] WHERE `person_Movie_Cond`)\n" +
+            "RETURN graphql.labels(`person`) AS `_labels`,\n`person`.`name` AS `name`";
+    private static final String SOME_TITLE_BEFORE = "MATCH (`person`:`Person`)\n" +
+            "WHERE ANY(`person_Movie_Cond` IN [(`person`)-[:`ACTED_IN`]->(`person_Movie`) | `person_Movie`.`title` = {title}] WHERE `person_Movie_Cond`)\n" +
+            "RETURN graphql.labels(`person`) AS `_labels`,\n`person`.`name` AS `name`";
+
+    private GraphDatabaseService db;
+    private CypherQuery some;
+    private CypherQuery someTitle;
+    private final Map<String, Object> params = Collections.singletonMap("title", "Movie 1");
+
+    @Setup
+    public void setUp() throws Exception {
+        // 20 actors in the same 5000 movies, the movie they look for is the first one created
+        db = BenchmarkDatabase.start(
+                "UNWIND range(1,5000) AS id CREATE (:Movie {title:'Movie '+id})",
+                "UNWIND range(1,20) AS id CREATE (:Person {name:'Person '+id})",
+                "MATCH (p:Person), (m:Movie) CREATE (p)-[:ACTED_IN]->(m)");
+        some = BenchmarkDatabase.generate(new Cypher31Generator(), CypherGeneratorBenchmark.IDL, SOME);
+        someTitle = BenchmarkDatabase.generate(new Cypher31Generator(), CypherGeneratorBenchmark.IDL, SOME_TITLE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Benchmark
+    public long someByDegree() {
+        return BenchmarkDatabase.run(db, some.getQuery(), some.getParams());
+    }
+
+    @Benchmark
+    public long someByList() {
+        return BenchmarkDatabase.run(db, SOME_BEFORE, Collections.emptyMap());
+    }
+
+    @Benchmark
+    public long someTitleShortCircuit() {
+        return BenchmarkDatabase.run(db, someTitle.getQuery(), someTitle.getParams());
+    }
+
+    @Benchmark
+    public long someTitleByList() {
+        return BenchmarkDatabase.run(db, SOME_TITLE_BEFORE, params);
+    }
+}